@@ -0,0 +1,136 @@
+package ca.yorku.eecs3214.mail;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Users database and mail store shared by the benchmarks of one JMH fork. Both are created in a temporary directory,
+ * which is removed when the fork ends, so benchmarks never touch the working directory. Benchmark state classes must
+ * call {@link #init()} before any server class is loaded, as the location of the store is read once, when the
+ * {@link Mailbox} class is initialized.
+ */
+public class BenchmarkStore {
+
+    public static final int USERS = 256;
+    public static final String PASSWORD = "benchmark";
+
+    private static Path directory = null;
+
+    private BenchmarkStore() {
+    }
+
+    /**
+     * Creates the users database and points the servers to it and to an empty mail store. Does nothing if this was
+     * already done in this process.
+     */
+    public static synchronized void init() {
+        if (directory != null)
+            return;
+        try {
+            directory = Files.createTempDirectory("mail-bench");
+            StringBuilder users = new StringBuilder();
+            for (int i = 0; i < USERS; i++)
+                users.append(user(i)).append(' ').append(PASSWORD).append('\n');
+            Path userFile = directory.resolve("users.txt");
+            Files.write(userFile, users.toString().getBytes(StandardCharsets.US_ASCII));
+            System.setProperty("mail.users.file", userFile.toString());
+            System.setProperty("mail.store.dir", directory.resolve("mail.store").toString());
+            Runtime.getRuntime().addShutdownHook(new Thread(BenchmarkStore::delete));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the address of one of the users in the database.
+     *
+     * @param i The number of the user, from 0 to {@link #USERS} - 1.
+     * @return The user's address.
+     */
+    public static String user(int i) {
+        return "bench" + i + "@example.com";
+    }
+
+    /**
+     * Returns the mailboxes of a range of users.
+     *
+     * @param first The number of the first user.
+     * @param count The number of mailboxes.
+     * @return The mailboxes, in order.
+     */
+    public static List<Mailbox> mailboxes(int first, int count) {
+        List<Mailbox> mailboxes = new ArrayList<>();
+        for (int i = first; i < first + count; i++)
+            mailboxes.add(new Mailbox(user(i)));
+        return mailboxes;
+    }
+
+    /**
+     * Returns the content of a message, as lines received with DATA (i.e., without line terminators), with headers
+     * followed by body lines of 76 characters.
+     *
+     * @param size The approximate size of the message, in bytes.
+     * @return The lines of the message.
+     */
+    public static String[] messageLines(int size) {
+        List<String> lines = new ArrayList<>();
+        lines.add("From: sender@example.com");
+        lines.add("Subject: Benchmark message");
+        lines.add("");
+        String line = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcd";
+        for (int written = 0; written < size; written += line.length() + 2)
+            lines.add(line);
+        return lines.toArray(new String[0]);
+    }
+
+    /**
+     * Delivers messages to a mailbox through the regular delivery path.
+     *
+     * @param mailbox The recipient's mailbox.
+     * @param count   The number of messages to deliver.
+     * @param size    The approximate size of each message, in bytes.
+     * @throws IOException If a message could not be delivered.
+     */
+    public static void fill(Mailbox mailbox, int count, int size) throws IOException {
+        String[] lines = messageLines(size);
+        for (int i = 0; i < count; i++) {
+            try (MailWriter writer = mailbox.getNewMessageWriter()) {
+                for (String line : lines)
+                    writer.write(line + "\r\n");
+            }
+        }
+    }
+
+    /**
+     * Deletes every message in a mailbox, so repeated deliveries do not grow it from one iteration to the next.
+     *
+     * @param mailbox The mailbox to empty.
+     */
+    public static void empty(Mailbox mailbox) {
+        mailbox.loadMessages(PASSWORD);
+        for (MailMessage message : mailbox)
+            message.tagForDeletion();
+        mailbox.deleteMessagesTaggedForDeletion();
+        mailbox.close();
+    }
+
+    private static void delete() {
+        // The servers of a load run may still be removing files while the store is walked
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error removing " + directory + ": " + e.getMessage());
+        }
+    }
+}
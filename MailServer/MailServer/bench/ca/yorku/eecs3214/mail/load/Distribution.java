@@ -0,0 +1,78 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Weighted choice among a few integer values, such as message sizes or recipient counts, parsed from a specification
+ * like <code>1024:70,16384:25,1048576:5</code>. Each entry is a value followed by its relative weight; an entry without
+ * a weight has a weight of 1.
+ */
+class Distribution {
+
+    private final int[] values;
+    private final long[] cumulativeWeights;
+
+    private Distribution(int[] values, long[] cumulativeWeights) {
+        this.values = values;
+        this.cumulativeWeights = cumulativeWeights;
+    }
+
+    /**
+     * Parses a distribution specification.
+     *
+     * @param spec The comma-separated list of values and weights.
+     * @return The distribution.
+     * @throws IllegalArgumentException If the specification is empty or malformed, or a value or weight is negative.
+     */
+    static Distribution parse(String spec) {
+        String[] entries = spec.split(",");
+        int[] values = new int[entries.length];
+        long[] cumulativeWeights = new long[entries.length];
+        long total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].trim().split(":");
+            try {
+                values[i] = Integer.parseInt(parts[0].trim());
+                total += parts.length > 1 ? Long.parseLong(parts[1].trim()) : 1;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed distribution entry: " + entries[i]);
+            }
+            if (parts.length > 2 || values[i] < 0 || total <= (i == 0 ? 0 : cumulativeWeights[i - 1]))
+                throw new IllegalArgumentException("Malformed distribution entry: " + entries[i]);
+            cumulativeWeights[i] = total;
+        }
+        return new Distribution(values, cumulativeWeights);
+    }
+
+    /**
+     * Picks a value at random, according to the weights.
+     *
+     * @return One of the values.
+     */
+    int sample() {
+        long r = ThreadLocalRandom.current().nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = Arrays.binarySearch(cumulativeWeights, r + 1);
+        return values[i >= 0 ? i : -i - 1];
+    }
+
+    /**
+     * Returns every value that can be picked.
+     *
+     * @return The values, in the order of the specification.
+     */
+    int[] getValues() {
+        return values.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        long previous = 0;
+        for (int i = 0; i < values.length; i++) {
+            text.append(i == 0 ? "" : ",").append(values[i]).append(':').append(cumulativeWeights[i] - previous);
+            previous = cumulativeWeights[i];
+        }
+        return text.toString();
+    }
+}
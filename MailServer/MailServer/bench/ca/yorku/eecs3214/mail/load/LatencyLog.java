@@ -0,0 +1,117 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latencies and errors of the commands issued by simulated clients. Each client records into its own log, without
+ * synchronization, and the logs are merged once the run is over. Every latency is kept, so the reported percentiles
+ * are exact rather than bucketed.
+ */
+class LatencyLog {
+
+    private final Map<String, Samples> commands = new TreeMap<>();
+
+    /**
+     * Records a command that completed with the expected reply.
+     *
+     * @param command The name of the command, including its protocol (e.g., <code>SMTP RCPT</code>).
+     * @param nanos   The time between sending the command and receiving the full reply, in nanoseconds.
+     */
+    void record(String command, long nanos) {
+        commands.computeIfAbsent(command, c -> new Samples()).add(nanos);
+    }
+
+    /**
+     * Records a command that failed, either with an unexpected reply or with a connection error.
+     *
+     * @param command The name of the command, including its protocol.
+     * @param cause   A description of the failure. Only the first one of each command is kept.
+     */
+    void recordError(String command, String cause) {
+        Samples samples = commands.computeIfAbsent(command, c -> new Samples());
+        if (samples.errors++ == 0)
+            samples.firstError = cause;
+    }
+
+    /**
+     * Adds the commands recorded in another log to this one.
+     *
+     * @param other The log to merge, which is left unchanged.
+     */
+    void merge(LatencyLog other) {
+        for (Map.Entry<String, Samples> entry : other.commands.entrySet()) {
+            Samples samples = commands.computeIfAbsent(entry.getKey(), c -> new Samples());
+            Samples added = entry.getValue();
+            for (int i = 0; i < added.count; i++)
+                samples.add(added.nanos[i]);
+            if (samples.errors == 0)
+                samples.firstError = added.firstError;
+            samples.errors += added.errors;
+        }
+    }
+
+    /**
+     * Returns the number of successful executions of a command.
+     *
+     * @param command The name of the command, including its protocol.
+     * @return The number of executions, or 0 if the command was never recorded.
+     */
+    long getCount(String command) {
+        Samples samples = commands.get(command);
+        return samples == null ? 0 : samples.count;
+    }
+
+    /**
+     * Formats a table with the throughput and latency percentiles of each command, followed by the first error of
+     * each command that failed.
+     *
+     * @param seconds The duration of the measurement, used to compute throughput.
+     * @return The text of the table, one command per line.
+     */
+    String report(double seconds) {
+        StringBuilder text = new StringBuilder(String.format("%-14s %9s %7s %10s %9s %9s %9s %9s%n", "command",
+                "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (Map.Entry<String, Samples> entry : commands.entrySet()) {
+            Samples samples = entry.getValue();
+            long[] sorted = Arrays.copyOf(samples.nanos, samples.count);
+            Arrays.sort(sorted);
+            text.append(String.format("%-14s %9d %7d %10.1f %9.3f %9.3f %9.3f %9.3f%n", entry.getKey(), samples.count,
+                    samples.errors, samples.count / seconds, percentile(sorted, 0.5), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6));
+        }
+        for (Map.Entry<String, Samples> entry : commands.entrySet()) {
+            if (entry.getValue().errors > 0)
+                text.append(String.format("First %s error: %s%n", entry.getKey(), entry.getValue().firstError));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns a percentile of sorted latencies, using the nearest-rank method.
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    /**
+     * The latencies of one command, in a growing array.
+     */
+    private static class Samples {
+
+        long[] nanos = new long[64];
+        int count = 0;
+        long errors = 0;
+        String firstError = null;
+
+        void add(long value) {
+            if (count == nanos.length)
+                nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = value;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ca.yorku.eecs3214.mail.load;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal client side of a line-based mail protocol, used by the simulated clients. Replies are read through a buffer
+ * owned by the client, and multi-line content such as a retrieved message is scanned for its terminating line without
+ * being decoded, so the clients spend as little CPU as possible next to the servers they load.
+ */
+class LineClient implements Closeable {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position = 0;
+    private int limit = 0;
+
+    /**
+     * Connects to a server on the loopback interface.
+     *
+     * @param port    The server's port.
+     * @param timeout The number of milliseconds to wait for the connection and for each read before failing.
+     * @throws IOException If the connection could not be established.
+     */
+    LineClient(int port, int timeout) throws IOException {
+        socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeout);
+            socket.setSoTimeout(timeout);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request line, adding the line terminator.
+     *
+     * @param line The request line.
+     * @throws IOException If the line could not be sent.
+     */
+    void sendLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.flush();
+    }
+
+    /**
+     * Sends bytes as they are, such as the content of a message including its terminating line.
+     *
+     * @param content The bytes to send.
+     * @throws IOException If the content could not be sent.
+     */
+    void send(byte[] content) throws IOException {
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Reads a reply line.
+     *
+     * @return The line, without its terminator.
+     * @throws IOException If the connection is closed or times out before a full line is received.
+     */
+    String readLine() throws IOException {
+        StringBuilder line = null;
+        while (true) {
+            if (position == limit)
+                fill();
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String text = new String(buffer, position, end - position, StandardCharsets.US_ASCII);
+                    position = i + 1;
+                    if (line == null)
+                        return text;
+                    line.append(text);
+                    int length = line.length();
+                    if (end == i && length > 0 && line.charAt(length - 1) == '\r')
+                        line.setLength(length - 1);
+                    return line.toString();
+                }
+            }
+            if (line == null)
+                line = new StringBuilder();
+            line.append(new String(buffer, position, limit - position, StandardCharsets.US_ASCII));
+            position = limit;
+        }
+    }
+
+    /**
+     * Reads an SMTP reply, which may span several lines.
+     *
+     * @return The last line of the reply, which starts with the reply code.
+     * @throws IOException If the connection is closed or times out before the full reply is received.
+     */
+    String readReply() throws IOException {
+        String line = readLine();
+        while (line.length() > 3 && line.charAt(3) == '-')
+            line = readLine();
+        return line;
+    }
+
+    /**
+     * Reads and discards multi-line content, up to and including the line with a single period.
+     *
+     * @return The number of bytes read, including line terminators and the final line.
+     * @throws IOException If the connection is closed or times out before the final line is received.
+     */
+    long skipMultiline() throws IOException {
+        long bytes = 0;
+        // Number of bytes of the current line seen so far, and whether they are exactly "."
+        int lineLength = 0;
+        boolean period = false;
+        while (true) {
+            if (position == limit)
+                fill();
+            byte b = buffer[position++];
+            bytes++;
+            if (b == '\n') {
+                if (period && (lineLength == 1 || lineLength == 2))
+                    return bytes;
+                lineLength = 0;
+                period = false;
+            } else {
+                period = lineLength == 0 ? b == '.' : period && lineLength == 1 && b == '\r';
+                lineLength++;
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        int read = in.read(buffer);
+        if (read < 0)
+            throw new EOFException("Connection closed by the server");
+        position = 0;
+        limit = read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,437 @@
+package ca.yorku.eecs3214.mail.load;
+
+import ca.yorku.eecs3214.mail.BenchmarkStore;
+import ca.yorku.eecs3214.mail.net.MyPOPServer;
+import ca.yorku.eecs3214.mail.net.MySMTPServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator that runs both servers in this process, on loopback ports and against a temporary mail store (see
+ * {@link BenchmarkStore}), and drives them with many concurrent simulated clients. Senders connect to the SMTP server
+ * and deliver a few messages per connection; pollers periodically connect to the POP3 server, retrieve and delete every
+ * message in their mailbox, and disconnect. Each client runs on its own thread and measures every command, from
+ * sending the request to receiving the full reply. Once the run is over, the throughput and latency percentiles of each
+ * command are printed.
+ * <p>
+ * The run is configured with system properties, e.g.:
+ * <pre>
+ *     mvn test-compile exec:java@load -Dload.senders=2000 -Dload.sendInterval=500 -Dload.transport=nio
+ * </pre>
+ * The output of the servers themselves is discarded, so only the report is printed. Since every simulated client
+ * connects from the loopback address, the servers' limit on connections per address is disabled unless it is set
+ * explicitly.
+ */
+public class LoadGenerator {
+
+    /**
+     * Transport mode of both servers (<code>blocking</code>, <code>nio</code> or <code>virtual</code>), configurable
+     * with the <code>load.transport</code> system property.
+     */
+    public static final String TRANSPORT = System.getProperty("load.transport", "blocking");
+
+    /**
+     * Number of simulated SMTP clients, configurable with the <code>load.senders</code> system property.
+     */
+    public static final int SENDERS = Integer.getInteger("load.senders", 1000);
+
+    /**
+     * Number of simulated POP3 clients, configurable with the <code>load.pollers</code> system property. Each poller
+     * reads one mailbox, so pollers beyond the number of mailboxes compete for the same maildrop locks.
+     */
+    public static final int POLLERS = Integer.getInteger("load.pollers", 200);
+
+    /**
+     * Number of mailboxes that receive the messages, configurable with the <code>load.mailboxes</code> system
+     * property. At most {@link BenchmarkStore#USERS}.
+     */
+    public static final int MAILBOXES = Integer.getInteger("load.mailboxes", 200);
+
+    /**
+     * Distribution of message sizes, in bytes, configurable with the <code>load.messageSize</code> system property
+     * (see {@link Distribution} for the format).
+     */
+    public static final String MESSAGE_SIZES = System.getProperty("load.messageSize",
+            "1024:60,8192:30,65536:9,1048576:1");
+
+    /**
+     * Distribution of the number of recipients of each message, configurable with the <code>load.recipients</code>
+     * system property (see {@link Distribution} for the format).
+     */
+    public static final String RECIPIENTS = System.getProperty("load.recipients", "1:80,3:15,20:5");
+
+    /**
+     * Number of messages each sender delivers before closing its connection and opening a new one, configurable with
+     * the <code>load.messagesPerConnection</code> system property.
+     */
+    public static final int MESSAGES_PER_CONNECTION = Integer.getInteger("load.messagesPerConnection", 10);
+
+    /**
+     * Number of milliseconds each sender waits after delivering a message, configurable with the
+     * <code>load.sendInterval</code> system property. A value of 0 sends messages back to back, so the offered load
+     * is only limited by the servers.
+     */
+    public static final long SEND_INTERVAL = Long.getLong("load.sendInterval", 1000);
+
+    /**
+     * Number of milliseconds between the polls of each poller, configurable with the <code>load.pollInterval</code>
+     * system property.
+     */
+    public static final long POLL_INTERVAL = Long.getLong("load.pollInterval", 1000);
+
+    /**
+     * Number of seconds during which the clients run before commands are measured, configurable with the
+     * <code>load.warmup</code> system property.
+     */
+    public static final long WARMUP = Long.getLong("load.warmup", 5);
+
+    /**
+     * Number of seconds during which commands are measured, configurable with the <code>load.duration</code> system
+     * property.
+     */
+    public static final long DURATION = Long.getLong("load.duration", 30);
+
+    /**
+     * Number of milliseconds a client waits for a connection or a reply before counting the command as failed,
+     * configurable with the <code>load.timeout</code> system property.
+     */
+    public static final int TIMEOUT = Integer.getInteger("load.timeout", 30000);
+
+    private static final int CLIENT_STACK_SIZE = 256 * 1024;
+
+    private static volatile boolean running = true;
+    private static volatile long measureStart = Long.MAX_VALUE;
+    private static volatile long measureEnd = Long.MAX_VALUE;
+
+    private static final AtomicLong MESSAGES_SENT = new AtomicLong();
+    private static final AtomicLong MESSAGES_RETRIEVED = new AtomicLong();
+    private static final AtomicLong BYTES_RETRIEVED = new AtomicLong();
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (MAILBOXES < 1 || MAILBOXES > BenchmarkStore.USERS)
+            throw new IllegalArgumentException("load.mailboxes must be between 1 and " + BenchmarkStore.USERS);
+        Distribution sizes = Distribution.parse(MESSAGE_SIZES);
+        Distribution recipients = Distribution.parse(RECIPIENTS);
+        Map<Integer, byte[]> contents = new HashMap<>();
+        for (int size : sizes.getValues())
+            contents.put(size, content(size));
+
+        PrintStream report = System.out;
+        if (System.getProperty("mail.connections.perAddress") == null)
+            System.setProperty("mail.connections.perAddress", "0");
+        BenchmarkStore.init();
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int smtpPort = startServer(MySMTPServer::main);
+        int popPort = startServer(MyPOPServer::main);
+        report.printf("SMTP on port %d, POP3 on port %d, transport %s%n", smtpPort, popPort, TRANSPORT);
+        report.printf("%d senders (sizes %s, recipients %s, interval %dms), %d pollers (interval %dms), " +
+                        "%d mailboxes%n", SENDERS, sizes, recipients, SEND_INTERVAL, POLLERS, POLL_INTERVAL,
+                MAILBOXES);
+
+        List<Thread> threads = new ArrayList<>();
+        List<LatencyLog> logs = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            LatencyLog log = new LatencyLog();
+            logs.add(log);
+            threads.add(new Thread(null, new Sender(smtpPort, sizes, recipients, contents, log), "sender-" + i,
+                    CLIENT_STACK_SIZE));
+        }
+        for (int i = 0; i < POLLERS; i++) {
+            LatencyLog log = new LatencyLog();
+            logs.add(log);
+            threads.add(new Thread(null, new Poller(popPort, BenchmarkStore.user(i % MAILBOXES), log),
+                    "poller-" + i, CLIENT_STACK_SIZE));
+        }
+        for (Thread thread : threads)
+            thread.start();
+
+        Thread.sleep(WARMUP * 1000);
+        measureStart = System.nanoTime();
+        long sentBefore = MESSAGES_SENT.get();
+        long retrievedBefore = MESSAGES_RETRIEVED.get();
+        long bytesBefore = BYTES_RETRIEVED.get();
+        report.printf("Warmed up after %ds, measuring for %ds...%n", WARMUP, DURATION);
+        Thread.sleep(DURATION * 1000);
+        measureEnd = System.nanoTime();
+        double seconds = (measureEnd - measureStart) / 1e9;
+        long sent = MESSAGES_SENT.get() - sentBefore;
+        long retrieved = MESSAGES_RETRIEVED.get() - retrievedBefore;
+        long bytes = BYTES_RETRIEVED.get() - bytesBefore;
+
+        running = false;
+        for (Thread thread : threads)
+            thread.join(TIMEOUT + Math.max(SEND_INTERVAL, POLL_INTERVAL));
+        LatencyLog total = new LatencyLog();
+        for (LatencyLog log : logs)
+            total.merge(log);
+
+        report.println();
+        report.print(total.report(seconds));
+        report.println();
+        report.printf("Messages sent: %.1f/s, retrieved: %.1f/s (%.1f MB/s)%n", sent / seconds, retrieved / seconds,
+                bytes / seconds / 1e6);
+        report.flush();
+        // The servers' threads never finish by themselves
+        System.exit(0);
+    }
+
+    /**
+     * Starts a server on a free loopback port, on a daemon thread, and waits until it accepts connections.
+     *
+     * @param server The main method of the server.
+     * @return The port of the server.
+     */
+    private static int startServer(ServerMain server) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                server.main(new String[]{Integer.toString(port), TRANSPORT});
+            } catch (IOException e) {
+                System.err.println("Error running the server on port " + port + ": " + e);
+            }
+        }, "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), TIMEOUT);
+                return port;
+            } catch (IOException e) {
+                if (attempt == 100)
+                    throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes sent after DATA for a message of about the given size, including the terminating line.
+     */
+    private static byte[] content(int size) {
+        StringBuilder text = new StringBuilder();
+        for (String line : BenchmarkStore.messageLines(size))
+            text.append(line).append("\r\n");
+        return text.append(".\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Sleeps for up to the given time, returning early once the run is over.
+     */
+    private static void pause(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        try {
+            for (long left = millis; running && left > 0; left = deadline - System.currentTimeMillis())
+                Thread.sleep(Math.min(left, 100));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a request line and checks the reply, recording the command's latency if it completes during the
+     * measurement, or an error.
+     *
+     * @param client   The client's connection.
+     * @param log      The client's log.
+     * @param name     The name under which the command is recorded.
+     * @param line     The request line, or null to only read a reply (e.g., the greeting).
+     * @param content  Content sent after the request line, or null.
+     * @param expected The prefix of the expected reply.
+     * @return The reply.
+     * @throws IOException If the connection failed, or the reply is not the expected one.
+     */
+    private static String command(LineClient client, LatencyLog log, String name, String line, byte[] content,
+                                  String expected) throws IOException {
+        long start = System.nanoTime();
+        String reply;
+        try {
+            if (line != null)
+                client.sendLine(line);
+            if (content != null)
+                client.send(content);
+            reply = name.startsWith("SMTP") ? client.readReply() : client.readLine();
+        } catch (IOException e) {
+            recordError(log, name, start, e);
+            throw e;
+        }
+        if (!reply.startsWith(expected)) {
+            IOException e = new IOException("Unexpected reply: " + reply);
+            recordError(log, name, start, e);
+            throw e;
+        }
+        record(log, name, start);
+        return reply;
+    }
+
+    /**
+     * Records the latency of a command that started at the given time, if it ran during the measurement.
+     */
+    private static void record(LatencyLog log, String name, long start) {
+        long end = System.nanoTime();
+        if (start >= measureStart && end <= measureEnd)
+            log.record(name, end - start);
+    }
+
+    /**
+     * Records the failure of a command that started at the given time, if it ran during the measurement.
+     */
+    private static void recordError(LatencyLog log, String name, long start, IOException e) {
+        if (start >= measureStart && System.nanoTime() <= measureEnd)
+            log.recordError(name, e.toString());
+    }
+
+    /**
+     * Connects to a server and reads its greeting, recording the time taken by both as a command.
+     */
+    private static LineClient connect(int port, LatencyLog log, String name, String expected) throws IOException {
+        long start = System.nanoTime();
+        LineClient client;
+        try {
+            client = new LineClient(port, TIMEOUT);
+            String greeting = client.readLine();
+            if (!greeting.startsWith(expected)) {
+                client.close();
+                throw new IOException("Unexpected greeting: " + greeting);
+            }
+        } catch (IOException e) {
+            recordError(log, name, start, e);
+            throw e;
+        }
+        record(log, name, start);
+        return client;
+    }
+
+    /**
+     * Simulated SMTP client. Delivers messages of random size to a random number of consecutive mailboxes, a few
+     * messages per connection.
+     */
+    private static class Sender implements Runnable {
+
+        private final int port;
+        private final Distribution sizes;
+        private final Distribution recipients;
+        private final Map<Integer, byte[]> contents;
+        private final LatencyLog log;
+
+        Sender(int port, Distribution sizes, Distribution recipients, Map<Integer, byte[]> contents,
+               LatencyLog log) {
+            this.port = port;
+            this.sizes = sizes;
+            this.recipients = recipients;
+            this.contents = contents;
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            // Spread the first connections over one interval
+            pause(ThreadLocalRandom.current().nextLong(SEND_INTERVAL + 1));
+            while (running) {
+                try (LineClient client = connect(port, log, "SMTP CONNECT", "220")) {
+                    command(client, log, "SMTP EHLO", "EHLO load.example.com", null, "250");
+                    for (int i = 0; i < MESSAGES_PER_CONNECTION && running; i++) {
+                        send(client);
+                        pause(SEND_INTERVAL);
+                    }
+                    command(client, log, "SMTP QUIT", "QUIT", null, "221");
+                } catch (IOException e) {
+                    // Already recorded, try again with a new connection
+                    pause(100);
+                }
+            }
+        }
+
+        private void send(LineClient client) throws IOException {
+            int count = Math.min(Math.max(recipients.sample(), 1), MAILBOXES);
+            int first = ThreadLocalRandom.current().nextInt(MAILBOXES);
+            command(client, log, "SMTP MAIL", "MAIL FROM:<sender@load.example.com>", null, "250");
+            for (int i = 0; i < count; i++) {
+                command(client, log, "SMTP RCPT", "RCPT TO:<" + BenchmarkStore.user((first + i) % MAILBOXES) + ">",
+                        null, "250");
+            }
+            command(client, log, "SMTP DATA", "DATA", null, "354");
+            command(client, log, "SMTP DATA-END", null, contents.get(sizes.sample()), "250");
+            MESSAGES_SENT.incrementAndGet();
+        }
+    }
+
+    /**
+     * Simulated POP3 client. Periodically retrieves and deletes every message in one mailbox.
+     */
+    private static class Poller implements Runnable {
+
+        private final int port;
+        private final String user;
+        private final LatencyLog log;
+
+        Poller(int port, String user, LatencyLog log) {
+            this.port = port;
+            this.user = user;
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            pause(ThreadLocalRandom.current().nextLong(POLL_INTERVAL + 1));
+            while (running) {
+                try (LineClient client = connect(port, log, "POP3 CONNECT", "+OK")) {
+                    poll(client);
+                } catch (IOException e) {
+                    // Already recorded, try again at the next poll
+                }
+                pause(POLL_INTERVAL);
+            }
+        }
+
+        private void poll(LineClient client) throws IOException {
+            command(client, log, "POP3 USER", "USER " + user, null, "+OK");
+            command(client, log, "POP3 PASS", "PASS " + BenchmarkStore.PASSWORD, null, "+OK");
+            String stat = command(client, log, "POP3 STAT", "STAT", null, "+OK");
+            int messages = Integer.parseInt(stat.split(" ")[1]);
+            for (int i = 1; i <= messages && running; i++) {
+                long start = System.nanoTime();
+                try {
+                    client.sendLine("RETR " + i);
+                    String reply = client.readLine();
+                    if (!reply.startsWith("+OK"))
+                        throw new IOException("Unexpected reply to RETR: " + reply);
+                    BYTES_RETRIEVED.addAndGet(client.skipMultiline());
+                } catch (IOException e) {
+                    recordError(log, "POP3 RETR", start, e);
+                    throw e;
+                }
+                record(log, "POP3 RETR", start);
+                MESSAGES_RETRIEVED.incrementAndGet();
+                command(client, log, "POP3 DELE", "DELE " + i, null, "+OK");
+            }
+            command(client, log, "POP3 QUIT", "QUIT", null, "+OK");
+        }
+    }
+
+    /**
+     * The main method of a server.
+     */
+    @FunctionalInterface
+    private interface ServerMain {
+        void main(String[] args) throws IOException;
+    }
+}
@@ -0,0 +1,80 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import ca.yorku.eecs3214.mail.BenchmarkStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a message with {@link MailWriter}, for different numbers of recipients and message sizes. The content is
+ * written line by line, as an SMTP session does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MailWriterBenchmark {
+
+    static {
+        BenchmarkStore.init();
+    }
+
+    @Param({"1", "10", "100"})
+    public int recipients;
+
+    @Param({"4096", "65536"})
+    public int messageSize;
+
+    private List<Mailbox> mailboxes;
+    private String[] lines;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mailboxes = BenchmarkStore.mailboxes(0, recipients);
+        lines = BenchmarkStore.messageLines(messageSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void emptyMailboxes() {
+        for (Mailbox mailbox : mailboxes)
+            BenchmarkStore.empty(mailbox);
+    }
+
+    /**
+     * Writes and flushes a message, and delivers it to every recipient.
+     */
+    @Benchmark
+    public void deliver() throws IOException {
+        MailWriter writer = new MailWriter(mailboxes);
+        for (String line : lines)
+            writer.write(line + "\r\n");
+        writer.close();
+    }
+
+    /**
+     * Writes and flushes a message, but discards it instead of delivering it, leaving out the cost of committing the
+     * message to each mailbox.
+     */
+    @Benchmark
+    public void writeAndDiscard() throws IOException {
+        MailWriter writer = new MailWriter(mailboxes);
+        for (String line : lines)
+            writer.write(line + "\r\n");
+        writer.flush();
+        writer.discard();
+    }
+}
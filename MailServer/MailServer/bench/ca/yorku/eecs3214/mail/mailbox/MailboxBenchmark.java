@@ -0,0 +1,73 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import ca.yorku.eecs3214.mail.BenchmarkStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a mailbox that already holds a number of messages: loading its list of messages, as POP3 PASS does, and
+ * creating a writer for a new message, as each delivery does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MailboxBenchmark {
+
+    static {
+        BenchmarkStore.init();
+    }
+
+    @Param({"10", "1000", "100000"})
+    public int messages;
+
+    private Mailbox mailbox;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mailbox = new Mailbox(BenchmarkStore.user(0));
+        BenchmarkStore.fill(mailbox, messages, 256);
+    }
+
+    /**
+     * Loads and releases the list of messages, served from the listing cache after the first load.
+     */
+    @Benchmark
+    public int loadMessages() {
+        mailbox.loadMessages(BenchmarkStore.PASSWORD);
+        int size = mailbox.size(true);
+        mailbox.close();
+        return size;
+    }
+
+    /**
+     * Loads and releases the list of messages with the listing cache disabled, so every load lists the storage.
+     */
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dmail.listingCache.size=0")
+    public int loadMessagesUncached() {
+        return loadMessages();
+    }
+
+    /**
+     * Creates a writer for a new message and discards it without writing any content.
+     */
+    @Benchmark
+    public void getNewMessageWriter() throws IOException {
+        mailbox.getNewMessageWriter().discard();
+    }
+}
@@ -0,0 +1,80 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Connection that discards everything sent to the client, so that benchmarks measure the sessions without a network.
+ * File regions and streams are still read in full, as a transport would, and the bytes sent are counted.
+ */
+class NullConnection implements ClientConnection {
+
+    private final ReplyWriter writer = new ReplyWriter(OutputStream.nullOutputStream());
+    private final WritableByteChannel sink = Channels.newChannel(OutputStream.nullOutputStream());
+    private long bytesSent = 0;
+
+    @Override
+    public ReplyWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        try (file) {
+            while (count > 0) {
+                long sent = file.transferTo(position, count, sink);
+                if (sent <= 0)
+                    break;
+                position += sent;
+                count -= sent;
+                bytesSent += sent;
+            }
+        }
+    }
+
+    @Override
+    public void sendStream(InputStream in) throws IOException {
+        try (in) {
+            bytesSent += in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Not supported: sessions are benchmarked without TLS.
+     */
+    @Override
+    public void startTls() throws IOException {
+        throw new IOException("TLS is not supported without a network");
+    }
+
+    /**
+     * Completes the delivery before returning, as a blocking transport would.
+     */
+    @Override
+    public void completeMessage(MailWriter writer, MailWriter.Completion completion) {
+        IOException error = null;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            writer.discard();
+            error = e;
+        }
+        completion.completed(error);
+    }
+
+    /**
+     * Returns the number of bytes of file regions and streams sent so far. Responses written to the writer are not
+     * counted.
+     *
+     * @return The number of bytes.
+     */
+    long getBytesSent() {
+        return bytesSent;
+    }
+}
@@ -0,0 +1,65 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.BenchmarkStore;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retrieving a message in an authenticated POP3 session. The content is read in full from the mail storage and
+ * discarded, so the benchmark covers the session and storage but not the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class POPSessionBenchmark {
+
+    static {
+        BenchmarkStore.init();
+    }
+
+    @Param({"4096", "1048576"})
+    public int messageSize;
+
+    private POPSession session;
+    private NullConnection connection;
+    private final RequestLine retr = RequestLine.of("RETR 1");
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String user = BenchmarkStore.user(0);
+        BenchmarkStore.fill(new Mailbox(user), 1, messageSize);
+        connection = new NullConnection();
+        session = new POPSession(connection);
+        session.open();
+        session.handleLine(RequestLine.of("USER " + user));
+        session.handleLine(RequestLine.of("PASS " + BenchmarkStore.PASSWORD));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public long retr() throws IOException {
+        session.handleLine(retr);
+        connection.getWriter().flush();
+        return connection.getBytesSent();
+    }
+}
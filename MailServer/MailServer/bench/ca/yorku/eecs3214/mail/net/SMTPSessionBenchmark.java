@@ -0,0 +1,89 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.BenchmarkStore;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiving a message in an SMTP session, from MAIL FROM to the final period of DATA, with the lines fed to the
+ * session as a transport would after splitting them. Includes the delivery to the recipients' mailboxes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SMTPSessionBenchmark {
+
+    static {
+        BenchmarkStore.init();
+    }
+
+    @Param({"1", "10"})
+    public int recipients;
+
+    @Param({"4096", "1048576"})
+    public int messageSize;
+
+    private SMTPSession session;
+    private NullConnection connection;
+    private List<Mailbox> mailboxes;
+    private RequestLine[] commands;
+    private RequestLine[] lines;
+    private final RequestLine end = RequestLine.of(".");
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mailboxes = BenchmarkStore.mailboxes(0, recipients);
+        commands = new RequestLine[recipients + 2];
+        commands[0] = RequestLine.of("MAIL FROM:<sender@example.com>");
+        for (int i = 0; i < recipients; i++)
+            commands[i + 1] = RequestLine.of("RCPT TO:<" + BenchmarkStore.user(i) + ">");
+        commands[recipients + 1] = RequestLine.of("DATA");
+        String[] text = BenchmarkStore.messageLines(messageSize);
+        lines = new RequestLine[text.length];
+        for (int i = 0; i < text.length; i++)
+            lines[i] = RequestLine.of(text[i]);
+        connection = new NullConnection();
+        session = new SMTPSession(connection);
+        session.open();
+        session.handleLine(RequestLine.of("EHLO client.example.com"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void emptyMailboxes() {
+        for (Mailbox mailbox : mailboxes)
+            BenchmarkStore.empty(mailbox);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public boolean receiveMessage() throws IOException {
+        for (RequestLine command : commands)
+            session.handleLine(command);
+        for (RequestLine line : lines)
+            session.handleLine(line);
+        boolean open = session.handleLine(end);
+        connection.getWriter().flush();
+        return open;
+    }
+}
@@ -0,0 +1,71 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Background thread that removes the files of deleted messages, so that a POP3 session ending with many deletions does
+ * not wait for them. Messages are first tombstoned by {@link DirectoryStorage}, which hides them from listings, and
+ * then scheduled here. Deletions scheduled while the reaper is busy are grouped, so each mailbox's metadata files are
+ * rewritten once per batch rather than once per session.
+ */
+class DeletionReaper {
+
+    private static final Map<String, Set<String>> PENDING = new HashMap<>();
+    private static final Map<String, DirectoryStorage> STORAGES = new HashMap<>();
+
+    static {
+        Thread reaper = new Thread(DeletionReaper::run, "deletion-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private DeletionReaper() {
+    }
+
+    /**
+     * Schedules the removal of tombstoned message files.
+     *
+     * @param user      The mailbox's user.
+     * @param storage   The storage of the mailbox, which performs the removal.
+     * @param fileNames The names of the message files.
+     */
+    static synchronized void schedule(String user, DirectoryStorage storage, Set<String> fileNames) {
+        PENDING.computeIfAbsent(user, u -> new HashSet<>()).addAll(fileNames);
+        STORAGES.putIfAbsent(user, storage);
+        DeletionReaper.class.notifyAll();
+    }
+
+    /**
+     * Repeatedly waits for scheduled deletions and performs all of them.
+     */
+    private static void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Map<String, Set<String>> batch;
+            Map<String, DirectoryStorage> storages;
+            synchronized (DeletionReaper.class) {
+                while (PENDING.isEmpty()) {
+                    try {
+                        DeletionReaper.class.wait();
+                    } catch (InterruptedException e) {
+                        // Keep waiting
+                    }
+                }
+                batch = new HashMap<>(PENDING);
+                storages = new HashMap<>(STORAGES);
+                PENDING.clear();
+                STORAGES.clear();
+            }
+            for (Map.Entry<String, Set<String>> entry : batch.entrySet()) {
+                try {
+                    storages.get(entry.getKey()).reap(entry.getValue());
+                } catch (RuntimeException e) {
+                    System.err.println("Error removing deleted messages of " + entry.getKey() + ": " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline that delivers accepted messages to their recipients' mailboxes in the background, so that an SMTP session
+ * can acknowledge a message as soon as it is spooled, without waiting for every mailbox to be written. Enabled by
+ * setting the number of worker threads (see {@link #WORKERS}).
+ * <p>
+ * Each message is spooled once, as a content file and an envelope file listing its size, index and recipients, and
+ * then queued. Worker threads take messages from a bounded queue and add the spooled content to each recipient's
+ * mailbox. Failed deliveries are retried after a delay, for the recipients that were not delivered yet. When the queue
+ * is full, sessions wait for room in it, up to a timeout, so that a slow disk slows down clients instead of exhausting
+ * memory. Envelopes left in the spool directory by a previous run are queued again when the pipeline starts.
+ */
+public class DeliveryQueue {
+
+    /**
+     * Number of delivery worker threads, configurable with the <code>mail.delivery.workers</code> system property. The
+     * default of 0 disables the pipeline, so each session writes its messages to the recipients' mailboxes itself.
+     */
+    public static final int WORKERS = Integer.getInteger("mail.delivery.workers", 0);
+    public static final boolean ENABLED = WORKERS > 0;
+
+    /**
+     * Maximum number of messages waiting for a worker, configurable with the <code>mail.delivery.queueSize</code>
+     * system property.
+     */
+    public static final int QUEUE_SIZE = Integer.getInteger("mail.delivery.queueSize", 1000);
+
+    /**
+     * Number of milliseconds a session waits for room in a full queue before the message is rejected, configurable
+     * with the <code>mail.delivery.queueTimeout</code> system property.
+     */
+    public static final long QUEUE_TIMEOUT = Long.getLong("mail.delivery.queueTimeout", 10000);
+
+    /**
+     * Number of attempts made to deliver a message before giving up, configurable with the
+     * <code>mail.delivery.maxAttempts</code> system property.
+     */
+    public static final int MAX_ATTEMPTS = Integer.getInteger("mail.delivery.maxAttempts", 5);
+
+    /**
+     * Number of milliseconds before a failed delivery is retried, multiplied by the number of attempts made so far,
+     * configurable with the <code>mail.delivery.retryDelay</code> system property.
+     */
+    public static final long RETRY_DELAY = Long.getLong("mail.delivery.retryDelay", 1000);
+
+    /**
+     * Number of milliseconds between attempts to queue a message submitted without blocking, while the queue is full.
+     */
+    private static final long QUEUE_RETRY_INTERVAL = 10;
+
+    public static final String ENVELOPE_FILE_SUFFIX = ".env";
+    public static final String FAILED_FILE_SUFFIX = ".failed";
+
+    private static final BlockingQueue<Delivery> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final Set<Path> ACTIVE = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "delivery-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicLong SUBMITTED = new AtomicLong();
+    private static final AtomicLong DELIVERED = new AtomicLong();
+    private static final AtomicLong RETRIED = new AtomicLong();
+    private static final AtomicLong FAILED = new AtomicLong();
+    private static final AtomicLong REJECTED = new AtomicLong();
+    private static final AtomicLong TOTAL_LATENCY = new AtomicLong();
+    private static final AtomicLong MAX_LATENCY = new AtomicLong();
+
+    static {
+        if (ENABLED) {
+            for (int i = 0; i < WORKERS; i++) {
+                Thread worker = new Thread(DeliveryQueue::runWorker, "delivery-worker-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+            SCHEDULER.execute(DeliveryQueue::recover);
+            Metrics.register("Delivery", "queue", new Stats());
+        }
+    }
+
+    private DeliveryQueue() {
+    }
+
+    /**
+     * Queues a spooled message for delivery. The message's envelope is saved next to its content first, and both are
+     * made durable according to the configured durability mode (see {@link Durability}), so the message is not lost
+     * if the process stops before it is delivered. The queue takes ownership of the content file once this method
+     * returns successfully.
+     *
+     * @param content    The spool file with the message content.
+     * @param size       The size of the message, in bytes.
+     * @param index      The index of the message.
+     * @param recipients The mailboxes where the message is delivered.
+     * @throws IOException If the envelope could not be saved, or the queue remained full until the timeout.
+     */
+    static void submit(Path content, long size, MessageIndex index, List<Mailbox> recipients) throws IOException {
+        List<String> users = new ArrayList<>();
+        for (Mailbox mailbox : recipients)
+            users.add(mailbox.getUsername());
+        Delivery delivery = new Delivery(content, size, index, users);
+        ACTIVE.add(delivery.envelope);
+        try {
+            delivery.saveEnvelope();
+            Durability.sync(List.of(content, delivery.envelope, MailWriter.SPOOL_DIRECTORY.toPath()));
+            if (!QUEUE.offer(delivery, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                REJECTED.incrementAndGet();
+                throw new IOException("Delivery queue is full");
+            }
+        } catch (IOException | InterruptedException e) {
+            cancel(delivery);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the delivery queue", e);
+            }
+            throw (IOException) e;
+        }
+        SUBMITTED.incrementAndGet();
+    }
+
+    /**
+     * Queues a spooled message for delivery without blocking the caller, e.g., an event loop. As with
+     * {@link #submit(Path, long, MessageIndex, List)}, the envelope is saved and made durable first, and the message
+     * then waits for room in the queue up to the timeout, but the queue is polled by the scheduler thread instead of
+     * the caller waiting.
+     *
+     * @param content    The spool file with the message content.
+     * @param size       The size of the message, in bytes.
+     * @param index      The index of the message.
+     * @param recipients The mailboxes where the message is delivered.
+     * @param completion Called with null once the message is queued, in which case the queue took ownership of the
+     *                   content file, or with the error if the envelope could not be saved or the queue remained full.
+     */
+    static void submit(Path content, long size, MessageIndex index, List<Mailbox> recipients,
+                       MailWriter.Completion completion) {
+        List<String> users = new ArrayList<>();
+        for (Mailbox mailbox : recipients)
+            users.add(mailbox.getUsername());
+        Delivery delivery = new Delivery(content, size, index, users);
+        ACTIVE.add(delivery.envelope);
+        try {
+            delivery.saveEnvelope();
+        } catch (IOException e) {
+            cancel(delivery);
+            completion.completed(e);
+            return;
+        }
+        long deadline = System.nanoTime() + QUEUE_TIMEOUT * 1_000_000;
+        Durability.sync(List.of(content, delivery.envelope, MailWriter.SPOOL_DIRECTORY.toPath()), error -> {
+            if (error != null) {
+                cancel(delivery);
+                completion.completed(error);
+            } else {
+                offer(delivery, deadline, completion);
+            }
+        });
+    }
+
+    /**
+     * Queues a message submitted without blocking, or tries again later on the scheduler thread while the queue is
+     * full, until the deadline.
+     */
+    private static void offer(Delivery delivery, long deadline, MailWriter.Completion completion) {
+        if (QUEUE.offer(delivery)) {
+            SUBMITTED.incrementAndGet();
+            completion.completed(null);
+        } else if (System.nanoTime() - deadline >= 0) {
+            REJECTED.incrementAndGet();
+            cancel(delivery);
+            completion.completed(new IOException("Delivery queue is full"));
+        } else {
+            SCHEDULER.schedule(() -> offer(delivery, deadline, completion), QUEUE_RETRY_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes the envelope of a message that could not be queued. The content file remains owned by the caller.
+     */
+    private static void cancel(Delivery delivery) {
+        try {
+            Files.deleteIfExists(delivery.envelope);
+        } catch (IOException e) {
+            System.err.println("Error removing " + delivery.envelope.getFileName() + ": " + e.getMessage());
+        }
+        ACTIVE.remove(delivery.envelope);
+    }
+
+    /**
+     * Returns the number of messages waiting for a worker.
+     *
+     * @return The current length of the queue.
+     */
+    public static int getQueueDepth() {
+        return QUEUE.size();
+    }
+
+    /**
+     * Returns the number of messages accepted into the queue since the process started.
+     *
+     * @return The number of messages.
+     */
+    public static long getSubmittedCount() {
+        return SUBMITTED.get();
+    }
+
+    /**
+     * Returns the number of messages delivered to all their recipients since the process started.
+     *
+     * @return The number of messages.
+     */
+    public static long getDeliveredCount() {
+        return DELIVERED.get();
+    }
+
+    /**
+     * Returns the number of delivery attempts that failed and were scheduled to be retried.
+     *
+     * @return The number of retries.
+     */
+    public static long getRetriedCount() {
+        return RETRIED.get();
+    }
+
+    /**
+     * Returns the number of messages abandoned after {@link #MAX_ATTEMPTS} failed attempts.
+     *
+     * @return The number of messages.
+     */
+    public static long getFailedCount() {
+        return FAILED.get();
+    }
+
+    /**
+     * Returns the number of messages rejected because the queue remained full until the timeout.
+     *
+     * @return The number of messages.
+     */
+    public static long getRejectedCount() {
+        return REJECTED.get();
+    }
+
+    /**
+     * Returns the average time between a message being queued and being delivered to all its recipients.
+     *
+     * @return The average latency, in milliseconds, or 0 if no message was delivered.
+     */
+    public static double getAverageLatencyMillis() {
+        long delivered = DELIVERED.get();
+        return delivered == 0 ? 0 : TOTAL_LATENCY.get() / 1e6 / delivered;
+    }
+
+    /**
+     * Returns the longest time between a message being queued and being delivered to all its recipients.
+     *
+     * @return The maximum latency, in milliseconds.
+     */
+    public static double getMaxLatencyMillis() {
+        return MAX_LATENCY.get() / 1e6;
+    }
+
+    /**
+     * Repeatedly takes a message from the queue and delivers it. Runs on each worker thread for the life of the
+     * process.
+     */
+    private static void runWorker() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Delivery delivery;
+            try {
+                delivery = QUEUE.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                deliver(delivery);
+            } catch (RuntimeException e) {
+                System.err.println("Error delivering " + delivery.content.getFileName() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the mailboxes of the recipients it was not delivered to yet, and then removes it from the spool
+     * or schedules a retry.
+     */
+    private static void deliver(Delivery delivery) {
+        // Files changed by a previous attempt whose sync failed are synced again along with this attempt's
+        Set<Path> changed = delivery.unsynced;
+        IOException failure = null;
+        for (Iterator<String> users = delivery.pending.iterator(); users.hasNext(); ) {
+            String user = users.next();
+            try {
+                MailStorage.forUser(user).addMessage(delivery.content, delivery.size, delivery.index, changed);
+                users.remove();
+                delivery.unsyncedUsers.add(user);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        try {
+            Durability.sync(changed);
+            changed.clear();
+            delivery.unsyncedUsers.clear();
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (failure == null) {
+            long latency = System.nanoTime() - delivery.queuedAt;
+            TOTAL_LATENCY.addAndGet(latency);
+            MAX_LATENCY.accumulateAndGet(latency, Math::max);
+            DELIVERED.incrementAndGet();
+            delivery.remove();
+        } else if (++delivery.attempts >= MAX_ATTEMPTS) {
+            FAILED.incrementAndGet();
+            System.err.println("Giving up delivering " + delivery.content.getFileName() + " to " +
+                    delivery.getUndelivered() + ": " + failure.getMessage());
+            delivery.abandon();
+        } else {
+            RETRIED.incrementAndGet();
+            try {
+                // Only the recipients still pending are delivered again, and those not synced yet after a restart
+                delivery.saveEnvelope();
+            } catch (IOException e) {
+                System.err.println("Error updating " + delivery.envelope.getFileName() + ": " + e.getMessage());
+            }
+            SCHEDULER.schedule(() -> requeue(delivery), RETRY_DELAY * delivery.attempts, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Puts a message back in the queue, or tries again after a delay if the queue is full. Runs on the scheduler
+     * thread, which must not block, as it is shared by every message waiting for a retry.
+     */
+    private static void requeue(Delivery delivery) {
+        if (!QUEUE.offer(delivery))
+            SCHEDULER.schedule(() -> requeue(delivery), RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the messages whose envelopes were left in the spool directory, e.g., because the process stopped before
+     * they were delivered. Runs on the scheduler thread when the pipeline starts.
+     */
+    private static void recover() {
+        Path spool = MailWriter.SPOOL_DIRECTORY.toPath();
+        if (!Files.isDirectory(spool))
+            return;
+        try (DirectoryStream<Path> envelopes = Files.newDirectoryStream(spool, "*" + ENVELOPE_FILE_SUFFIX)) {
+            for (Path envelope : envelopes) {
+                if (ACTIVE.contains(envelope))
+                    continue;
+                Delivery delivery = Delivery.load(envelope);
+                if (delivery == null) {
+                    System.err.println("Ignoring malformed envelope " + envelope.getFileName());
+                    continue;
+                }
+                if (ACTIVE.add(envelope))
+                    requeue(delivery);
+            }
+        } catch (IOException e) {
+            System.err.println("Error recovering spooled messages: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The queue's metrics, as registered with {@link Metrics}.
+     */
+    private static class Stats implements DeliveryQueueMXBean {
+
+        @Override
+        public int getQueueDepth() {
+            return DeliveryQueue.getQueueDepth();
+        }
+
+        @Override
+        public long getSubmittedCount() {
+            return DeliveryQueue.getSubmittedCount();
+        }
+
+        @Override
+        public long getDeliveredCount() {
+            return DeliveryQueue.getDeliveredCount();
+        }
+
+        @Override
+        public long getRetriedCount() {
+            return DeliveryQueue.getRetriedCount();
+        }
+
+        @Override
+        public long getFailedCount() {
+            return DeliveryQueue.getFailedCount();
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return DeliveryQueue.getRejectedCount();
+        }
+
+        @Override
+        public double getAverageLatencyMillis() {
+            return DeliveryQueue.getAverageLatencyMillis();
+        }
+
+        @Override
+        public double getMaxLatencyMillis() {
+            return DeliveryQueue.getMaxLatencyMillis();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("depth=%d submitted=%d delivered=%d retried=%d failed=%d rejected=%d " +
+                            "latency mean=%.1fms max=%.1fms", getQueueDepth(), getSubmittedCount(),
+                    getDeliveredCount(), getRetriedCount(), getFailedCount(), getRejectedCount(),
+                    getAverageLatencyMillis(), getMaxLatencyMillis());
+        }
+    }
+
+    /**
+     * A spooled message waiting to be delivered.
+     */
+    private static class Delivery {
+
+        final Path content;
+        final Path envelope;
+        final long size;
+        final MessageIndex index;
+        final List<String> pending;
+        /** Recipients the message was added to, whose files were not made durable yet. */
+        final List<String> unsyncedUsers = new ArrayList<>();
+        /** Files changed by adding the message to those recipients' mailboxes. */
+        final Set<Path> unsynced = new LinkedHashSet<>();
+        final long queuedAt = System.nanoTime();
+        int attempts = 0;
+
+        Delivery(Path content, long size, MessageIndex index, List<String> pending) {
+            this.content = content;
+            this.envelope = getEnvelopeFile(content);
+            this.size = size;
+            this.index = index;
+            this.pending = pending;
+        }
+
+        private static Path getEnvelopeFile(Path content) {
+            String name = content.getFileName().toString();
+            if (name.endsWith(Mailbox.MAIL_FILE_SUFFIX))
+                name = name.substring(0, name.length() - Mailbox.MAIL_FILE_SUFFIX.length());
+            return content.resolveSibling(name + ENVELOPE_FILE_SUFFIX);
+        }
+
+        /**
+         * Reads an envelope saved by {@link #saveEnvelope()}.
+         *
+         * @param envelope The envelope file.
+         * @return The message, or null if the envelope or its content file is missing or malformed.
+         */
+        static Delivery load(Path envelope) throws IOException {
+            List<String> lines = Files.readAllLines(envelope, StandardCharsets.US_ASCII);
+            if (lines.size() < 2)
+                return null;
+            MessageIndex.Record record = MessageIndex.parseRecord(lines.get(1));
+            if (record == null)
+                return null;
+            Path content = envelope.resolveSibling(record.fileName);
+            if (!Files.exists(content))
+                return null;
+            try {
+                return new Delivery(content, Long.parseLong(lines.get(0)), record.index,
+                        new ArrayList<>(lines.subList(2, lines.size())));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Returns the recipients the message was not durably delivered to yet.
+         *
+         * @return The pending recipients, followed by those whose delivery was not synced.
+         */
+        List<String> getUndelivered() {
+            List<String> users = new ArrayList<>(pending);
+            users.addAll(unsyncedUsers);
+            return users;
+        }
+
+        /**
+         * Saves the message's size, index and undelivered recipients, one per line, replacing the envelope atomically.
+         * Recipients whose delivery was not synced are included, so that they receive the message again rather than
+         * lose it if the process stops before their files are durable.
+         */
+        void saveEnvelope() throws IOException {
+            StringBuilder text = new StringBuilder().append(size).append('\n')
+                    .append(index.toRecord(content.getFileName().toString())).append('\n');
+            for (String user : getUndelivered())
+                text.append(user).append('\n');
+            Path temporary = envelope.resolveSibling(envelope.getFileName() + ".tmp");
+            Files.write(temporary, text.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(temporary, envelope, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Removes a delivered message from the spool. The content remains available in each mailbox.
+         */
+        void remove() {
+            try {
+                Files.deleteIfExists(envelope);
+                Files.deleteIfExists(content);
+            } catch (IOException e) {
+                System.err.println("Error removing " + content.getFileName() + " from the spool: " + e.getMessage());
+            }
+            ACTIVE.remove(envelope);
+        }
+
+        /**
+         * Keeps an undeliverable message in the spool, with its envelope renamed so that it is not queued again.
+         */
+        void abandon() {
+            try {
+                Files.move(envelope, envelope.resolveSibling(envelope.getFileName() + FAILED_FILE_SUFFIX),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("Error moving " + envelope.getFileName() + ": " + e.getMessage());
+            }
+            ACTIVE.remove(envelope);
+        }
+    }
+}
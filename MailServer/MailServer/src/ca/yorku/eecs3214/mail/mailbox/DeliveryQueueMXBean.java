@@ -0,0 +1,23 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+/**
+ * Management interface of the {@link DeliveryQueue}, as exposed through JMX.
+ */
+public interface DeliveryQueueMXBean {
+
+    int getQueueDepth();
+
+    long getSubmittedCount();
+
+    long getDeliveredCount();
+
+    long getRetriedCount();
+
+    long getFailedCount();
+
+    long getRejectedCount();
+
+    double getAverageLatencyMillis();
+
+    double getMaxLatencyMillis();
+}
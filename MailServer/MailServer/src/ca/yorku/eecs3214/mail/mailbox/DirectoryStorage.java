@@ -0,0 +1,668 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Default storage backend, which stores each message in its own file (<code>N.mail</code>) in the user's mail
+ * directory, along with an index file holding the index of each message (see {@link MessageIndex}). A new message is
+ * written under a temporary name (<code>N.mail.part</code>), which listings ignore, and renamed once it is complete, so
+ * a session never lists a message whose content is still being received.
+ * <p>
+ * Deleting messages only records their names in a tombstone file, which hides them from listings; the files are then
+ * removed in the background by the {@link DeletionReaper}. Tombstones left by an interrupted process are found when the
+ * mailbox is next listed, and their files removed then.
+ * <p>
+ * If compression is enabled (see {@link #COMPRESS}), new messages are compressed with Deflater as they are written, and
+ * stored as <code>N.mail.z</code> files, which start with the uncompressed size of the message so that it can be
+ * listed without decompressing the content. Compressed and uncompressed messages can coexist in a mailbox.
+ */
+class DirectoryStorage implements MailStorage {
+
+    public static final String TOMBSTONE_FILE_NAME = ".deleted";
+    public static final String PART_FILE_SUFFIX = ".part";
+
+    /**
+     * Maximum number of mailboxes whose message listings are cached, configurable with the
+     * <code>mail.listingCache.size</code> system property. A value of 0 disables the cache.
+     */
+    public static final int LISTING_CACHE_SIZE = Integer.getInteger("mail.listingCache.size", 1024);
+    /**
+     * Whether new messages are stored compressed, enabled with the <code>mail.storage.compress</code> system property.
+     */
+    public static final boolean COMPRESS = Boolean.getBoolean("mail.storage.compress");
+
+    /**
+     * Compression level used for new messages (0-9), configurable with the <code>mail.storage.compressionLevel</code>
+     * system property.
+     */
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("mail.storage.compressionLevel",
+            Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * Number of bytes at the start of a compressed message file, holding the uncompressed size of the message.
+     */
+    public static final int COMPRESSED_HEADER_LENGTH = Long.BYTES;
+
+    private static final MessageListingCache LISTING_CACHE = new MessageListingCache(LISTING_CACHE_SIZE);
+    private static final MailboxUsage USAGE = new MailboxUsage();
+
+    private static final Map<String, AtomicLong> MESSAGE_SEQUENCES = new ConcurrentHashMap<>();
+
+    /**
+     * Objects used to serialize access to each mailbox's index and tombstone files within this process. File locks
+     * alone are not enough, as they are held on behalf of the whole process.
+     */
+    private static final Map<String, Object> INDEX_LOCKS = new ConcurrentHashMap<>();
+
+    private final String user;
+    private final File mailDirectory;
+    private final Path indexFile;
+    private final Path tombstoneFile;
+
+    /**
+     * Creates the storage of a user's mailbox.
+     *
+     * @param user The mailbox's user.
+     */
+    DirectoryStorage(String user) {
+        this.user = user;
+        this.mailDirectory = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, user);
+        this.indexFile = new File(mailDirectory, Mailbox.INDEX_FILE_NAME).toPath();
+        this.tombstoneFile = new File(mailDirectory, TOMBSTONE_FILE_NAME).toPath();
+    }
+
+    /**
+     * Lists the messages in the mailbox. The list of message files is obtained from a process-wide cache if available,
+     * and otherwise by scanning the mail directory.
+     */
+    @Override
+    public List<MailMessage> loadMessages() {
+        return getListing().stream()
+                .map(entry -> new MailMessage(new File(mailDirectory, entry.name), 0, entry.size, entry.index,
+                        isCompressed(entry.name)))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void release() {
+        // Message files remain readable until deleted
+    }
+
+    /**
+     * Returns the list of messages in the mailbox, from the process-wide cache if available, and otherwise by scanning
+     * the mail directory.
+     *
+     * @return The name, size and index of each message file, sorted in delivery order.
+     */
+    private List<MessageListingCache.Entry> getListing() {
+        FileTime modified = getDirectoryModifiedTime();
+        List<MessageListingCache.Entry> listing = LISTING_CACHE.get(user, modified);
+        if (listing == null) {
+            long version = LISTING_CACHE.version(user);
+            listing = scanMessages();
+            LISTING_CACHE.put(user, listing, version, modified);
+        }
+        return listing;
+    }
+
+    /**
+     * Returns the total size of the message files. The size is kept in a process-wide counter, so the mail directory
+     * is only listed the first time, or after it was changed by another process.
+     */
+    @Override
+    public long getUsage() {
+        FileTime modified = getDirectoryModifiedTime();
+        long bytes = USAGE.getBytes(user, modified);
+        if (bytes < 0) {
+            long version = USAGE.version(user);
+            bytes = getListing().stream().mapToLong(entry -> entry.size).sum();
+            USAGE.put(user, bytes, version, modified);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the modification time of the mail directory, which changes whenever a message file is added or removed.
+     *
+     * @return The modification time, or the epoch if the directory does not exist.
+     */
+    private FileTime getDirectoryModifiedTime() {
+        try {
+            return Files.getLastModifiedTime(mailDirectory.toPath());
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Lists the message files in the mail directory that were not deleted, sorted in delivery order. Files still
+     * tombstoned at this point are scheduled for removal again, in case the process that deleted them was stopped.
+     *
+     * @return The name, size and index of each message file.
+     */
+    private List<MessageListingCache.Entry> scanMessages() {
+        List<MessageListingCache.Entry> listing = new ArrayList<>();
+        // Read first: the reaper removes a tombstone only after its file, so no removed file can be listed below
+        Set<String> tombstones = readTombstones();
+        File[] files = mailDirectory.listFiles(f -> f.isFile() && getMessageIndex(f.getName()) >= 0);
+        if (files != null) {
+            Map<String, MessageIndex> indexes = readIndex();
+            for (File file : files) {
+                if (!tombstones.contains(file.getName()))
+                    listing.add(new MessageListingCache.Entry(file.getName(), getMessageSize(file),
+                            indexes.get(file.getName())));
+            }
+            listing.sort(MessageListingCache.Entry.ORDER);
+            if (!tombstones.isEmpty())
+                DeletionReaper.schedule(user, this, tombstones);
+        }
+        return listing;
+    }
+
+    /**
+     * Reads the indexes of the messages in the mailbox from the index file.
+     *
+     * @return A map from the name of each message file to its index. Messages without an index are not included.
+     */
+    @SuppressWarnings("try")
+    private Map<String, MessageIndex> readIndex() {
+        Map<String, MessageIndex> indexes = new HashMap<>();
+        synchronized (INDEX_LOCKS.computeIfAbsent(user, u -> new Object())) {
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+                 FileLock ignored = channel.lock(0, Long.MAX_VALUE, true)) {
+                BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.US_ASCII));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    MessageIndex.Record record = MessageIndex.parseRecord(line);
+                    if (record != null)
+                        indexes.put(record.fileName, record.index);
+                }
+            } catch (NoSuchFileException e) {
+                // No message was indexed yet
+            } catch (IOException e) {
+                System.err.println("Error reading the message index of " + user + ": " + e.getMessage());
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Appends the index of a new message to the index file.
+     *
+     * @param fileName The name of the message file.
+     * @param index    The index of the message.
+     * @throws IOException If there is an error writing the index file.
+     */
+    @SuppressWarnings("try")
+    private void appendIndex(String fileName, MessageIndex index) throws IOException {
+        ByteBuffer record = StandardCharsets.US_ASCII.encode(index.toRecord(fileName) + "\n");
+        synchronized (INDEX_LOCKS.computeIfAbsent(user, u -> new Object())) {
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+                 FileLock ignored = channel.lock()) {
+                while (record.hasRemaining())
+                    channel.write(record);
+            }
+        }
+    }
+
+    /**
+     * Reads the names of the tombstoned message files, i.e., deleted messages whose files were not removed yet.
+     *
+     * @return The set of file names.
+     */
+    @SuppressWarnings("try")
+    private Set<String> readTombstones() {
+        Set<String> names = new HashSet<>();
+        synchronized (INDEX_LOCKS.computeIfAbsent(user, u -> new Object())) {
+            try (FileChannel channel = FileChannel.open(tombstoneFile, StandardOpenOption.READ);
+                 FileLock ignored = channel.lock(0, Long.MAX_VALUE, true)) {
+                BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.US_ASCII));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty())
+                        names.add(line);
+                }
+            } catch (NoSuchFileException e) {
+                // Nothing was deleted
+            } catch (IOException e) {
+                System.err.println("Error reading the deleted messages of " + user + ": " + e.getMessage());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Appends the names of deleted message files to the tombstone file, which is forced to disk so that the deletion
+     * is not lost if the process stops before the files are removed.
+     *
+     * @param fileNames The names of the deleted message files.
+     * @throws IOException If there is an error writing the tombstone file.
+     */
+    @SuppressWarnings("try")
+    private void appendTombstones(Set<String> fileNames) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (String name : fileNames)
+            lines.append(name).append('\n');
+        ByteBuffer records = StandardCharsets.US_ASCII.encode(lines.toString());
+        synchronized (INDEX_LOCKS.computeIfAbsent(user, u -> new Object())) {
+            try (FileChannel channel = FileChannel.open(tombstoneFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                 FileLock ignored = channel.lock()) {
+                while (records.hasRemaining())
+                    channel.write(records);
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Removes the records of message files from the index file or the tombstone file, which is rewritten in place
+     * while locked, so that other processes appending to it are not affected.
+     *
+     * @param file      The index file or the tombstone file.
+     * @param fileNames The names of the message files whose records are removed.
+     */
+    @SuppressWarnings("try")
+    private void removeRecords(Path file, Set<String> fileNames) {
+        synchronized (INDEX_LOCKS.computeIfAbsent(user, u -> new Object())) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+                while (content.hasRemaining()) {
+                    if (channel.read(content, content.position()) < 0)
+                        break;
+                }
+                StringBuilder kept = new StringBuilder(content.position());
+                for (String line : new String(content.array(), 0, content.position(), StandardCharsets.US_ASCII)
+                        .split("\n")) {
+                    int end = line.indexOf(' ');
+                    if (!line.isEmpty() && !fileNames.contains(end < 0 ? line : line.substring(0, end)))
+                        kept.append(line).append('\n');
+                }
+                ByteBuffer rewritten = StandardCharsets.US_ASCII.encode(kept.toString());
+                channel.truncate(0);
+                long position = 0;
+                while (rewritten.hasRemaining())
+                    position += channel.write(rewritten, position);
+            } catch (NoSuchFileException e) {
+                // No record was written
+            } catch (IOException e) {
+                System.err.println("Error updating " + file.getFileName() + " of " + user + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reserves the name of a new incoming message by creating its empty part file (see {@link #getPartFile(File)}).
+     * Message files are numbered from a per-mailbox sequence kept in memory, which is initialized from the highest
+     * number in the mail directory the first time a message is delivered to the mailbox. The cost of a delivery
+     * therefore does not depend on the number of messages already in the mailbox.
+     *
+     * @return A File object associated to the message file, which does not exist until the message is complete.
+     * @throws IOException If the part file could not be created.
+     */
+    private File getNewMessageFile() throws IOException {
+        AtomicLong sequence = MESSAGE_SEQUENCES.computeIfAbsent(user, u -> new AtomicLong(findNextMessageIndex()));
+        FileTime before = getDirectoryModifiedTime();
+        while (true) {
+            File file = new File(mailDirectory, sequence.getAndIncrement() +
+                    (COMPRESS ? Mailbox.COMPRESSED_FILE_SUFFIX : Mailbox.MAIL_FILE_SUFFIX));
+            File part = getPartFile(file);
+            try {
+                if (!file.exists() && part.createNewFile()) {
+                    touched(before);
+                    return file;
+                }
+                // Already taken, e.g., by another process delivering to the same mailbox, try the next index
+            } catch (IOException e) {
+                // The directory may have been removed since the sequence was initialized
+                if (!mailDirectory.mkdirs())
+                    throw e;
+                if (part.createNewFile()) {
+                    touched(before);
+                    return file;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file where the content of a new message is written until it is complete.
+     *
+     * @param file The message file.
+     * @return The part file, named after the message file.
+     */
+    private static File getPartFile(File file) {
+        return new File(file.getParentFile(), file.getName() + PART_FILE_SUFFIX);
+    }
+
+    /**
+     * Records a change to the mail directory that does not affect the list of messages, such as a part file being
+     * created or removed, so the cached listing and usage remain valid.
+     *
+     * @param before The modification time of the mail directory before the change.
+     */
+    private void touched(FileTime before) {
+        FileTime after = getDirectoryModifiedTime();
+        LISTING_CACHE.touched(user, before, after);
+        USAGE.touched(user, before, after);
+    }
+
+    /**
+     * Creates the mail directory if it doesn't exist and finds the index following the highest-numbered message file
+     * in it. Tombstoned names are included even if their files were already removed, so that a new message never takes
+     * the name of a deleted one.
+     *
+     * @return The index of the next message file to be created.
+     */
+    private long findNextMessageIndex() {
+        //noinspection ResultOfMethodCallIgnored
+        mailDirectory.mkdirs();
+        long next = 0;
+        String[] names = mailDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                // Messages still being received elsewhere have reserved their number too
+                if (name.endsWith(PART_FILE_SUFFIX))
+                    name = name.substring(0, name.length() - PART_FILE_SUFFIX.length());
+                next = Math.max(next, getMessageIndex(name) + 1);
+            }
+        }
+        for (String name : readTombstones())
+            next = Math.max(next, getMessageIndex(name) + 1);
+        return next;
+    }
+
+    /**
+     * Returns the number in the name of a message file, used to keep messages in the order they were delivered.
+     *
+     * @param fileName The name of a message file, such as <code>12.mail</code>.
+     * @return The number in the file name, or -1 if the name does not have the expected format.
+     */
+    static long getMessageIndex(String fileName) {
+        String suffix = isCompressed(fileName) ? Mailbox.COMPRESSED_FILE_SUFFIX : Mailbox.MAIL_FILE_SUFFIX;
+        if (!fileName.endsWith(suffix))
+            return -1;
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isCompressed(String fileName) {
+        return fileName.endsWith(Mailbox.COMPRESSED_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the size of the message in a file, which is the length of the file unless the message is compressed, in
+     * which case the size is read from the file's header.
+     *
+     * @param file The message file.
+     * @return The size of the message, in bytes, or 0 if it cannot be read.
+     */
+    private long getMessageSize(File file) {
+        if (!isCompressed(file.getName()))
+            return file.length();
+        ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_LENGTH);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete or the file ends
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading the size of " + file.getName() + " in " + user + ": " + e.getMessage());
+        }
+        return header.hasRemaining() ? 0 : header.getLong(0);
+    }
+
+    /**
+     * Writes the uncompressed size of a message at the start of its compressed file.
+     *
+     * @param file The compressed message file, whose content is complete.
+     * @param size The size of the message, in bytes.
+     * @throws IOException If there is an error writing the file.
+     */
+    private static void writeCompressedHeader(File file, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_LENGTH).putLong(0, size);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Opens a stream that writes a compressed message file, starting with room for its header (see
+     * {@link #writeCompressedHeader(File, long)}).
+     *
+     * @param file The new message file.
+     * @return The output stream, which compresses the content written to it.
+     * @throws IOException If the file could not be opened.
+     */
+    private static OutputStream openCompressed(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try {
+            out.write(new byte[COMPRESSED_HEADER_LENGTH]);
+        } catch (IOException e) {
+            deflater.end();
+            out.close();
+            throw e;
+        }
+        return new DeflaterOutputStream(out, deflater, MailWriter.BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // The deflater is not released by the stream, as it was not created by it
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a new message, whose content is written directly by the caller into its part file.
+     */
+    @Override
+    public PendingMessage createMessage() throws IOException {
+        File file = getNewMessageFile();
+        File part = getPartFile(file);
+        OutputStream out;
+        try {
+            out = COMPRESS ? openCompressed(part) : new FileOutputStream(part);
+        } catch (IOException e) {
+            removePart(part);
+            throw e;
+        }
+        return new PendingMessage() {
+            @Override
+            public OutputStream getOutputStream() {
+                return out;
+            }
+
+            @Override
+            public void commit(long size, MessageIndex index, Collection<Path> changed) throws IOException {
+                FileTime before;
+                try {
+                    if (COMPRESS)
+                        writeCompressedHeader(part, size);
+                    before = getDirectoryModifiedTime();
+                    Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    discard();
+                    throw e;
+                }
+                messageDelivered(file, size, index, before, changed);
+            }
+
+            @Override
+            public void discard() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignored, the file is deleted below
+                }
+                removePart(part);
+            }
+        };
+    }
+
+    /**
+     * Deletes the part file of a message that will not be delivered. The message was never listed, so the cached
+     * listing remains valid.
+     *
+     * @param part The part file.
+     */
+    private void removePart(File part) {
+        FileTime before = getDirectoryModifiedTime();
+        //noinspection ResultOfMethodCallIgnored
+        part.delete();
+        touched(before);
+    }
+
+    /**
+     * Adds an existing message file to this mailbox as a new message, by creating a hard link to it, so that the same
+     * content can be shared by several mailboxes without being copied. If the file system does not support hard links
+     * to the file, the content is copied instead. If compression is enabled, a compressed copy is always made.
+     */
+    @Override
+    public void addMessage(Path content, long size, MessageIndex index, Collection<Path> changed)
+            throws IOException {
+        Path target = getNewMessageFile().toPath();
+        Path part = getPartFile(target.toFile()).toPath();
+        // The link is created under a temporary name and renamed over the part file that reserves the message's name,
+        // and then to the message's name, so the new message is never visible with partial content
+        Path temporary = target.resolveSibling(target.getFileName() + ".link");
+        FileTime before = getDirectoryModifiedTime();
+        try {
+            if (COMPRESS) {
+                try (OutputStream out = openCompressed(temporary.toFile())) {
+                    Files.copy(content, out);
+                }
+                writeCompressedHeader(temporary.toFile(), size);
+            } else {
+                try {
+                    Files.createLink(temporary, content);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    Files.copy(content, temporary, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(temporary, part, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            removePart(part.toFile());
+            throw e;
+        }
+        messageDelivered(target.toFile(), size, index, before, changed);
+    }
+
+    /**
+     * Records that the content of a new message file is complete, saving its index and including it in the cached
+     * list of messages. A failure to save the index is not reported to the caller, as the message itself was
+     * delivered; the message is then handled as if it had no index.
+     *
+     * @param file  The message file, obtained from this mailbox.
+     * @param size  The size of the message, in bytes.
+     * @param index   The index of the message.
+     * @param before  The modification time of the mail directory before the message file was added to it.
+     * @param changed Collection where the message file, the mail directory and the index file are added.
+     */
+    private void messageDelivered(File file, long size, MessageIndex index, FileTime before,
+                                  Collection<Path> changed) {
+        changed.add(file.toPath());
+        changed.add(mailDirectory.toPath());
+        try {
+            appendIndex(file.getName(), index);
+            changed.add(indexFile);
+        } catch (IOException e) {
+            System.err.println("Error saving the message index of " + user + ": " + e.getMessage());
+            index = null;
+        }
+        FileTime after = getDirectoryModifiedTime();
+        LISTING_CACHE.added(user, new MessageListingCache.Entry(file.getName(), size, index), before, after);
+        USAGE.added(user, size, before, after);
+    }
+
+    /**
+     * Tombstones the messages, which are immediately removed from listings, and schedules the removal of their files.
+     * If the tombstones cannot be saved, the files are removed before returning instead.
+     */
+    @Override
+    public void deleteMessages(Collection<MailMessage> messages) {
+        Set<String> names = new HashSet<>();
+        long bytes = 0;
+        for (MailMessage message : messages) {
+            names.add(message.getFile().getName());
+            bytes += message.getFileSize();
+        }
+        if (names.isEmpty())
+            return;
+        // The tombstone file is created in the mail directory by the first deletion
+        FileTime before = getDirectoryModifiedTime();
+        try {
+            appendTombstones(names);
+        } catch (IOException e) {
+            System.err.println("Error saving the deleted messages of " + user + ": " + e.getMessage());
+            FileTime after = getDirectoryModifiedTime();
+            LISTING_CACHE.removed(user, names, before, after);
+            USAGE.removed(user, bytes, before, after);
+            reap(names);
+            return;
+        }
+        FileTime after = getDirectoryModifiedTime();
+        LISTING_CACHE.removed(user, names, before, after);
+        USAGE.removed(user, bytes, before, after);
+        DeletionReaper.schedule(user, this, names);
+    }
+
+    /**
+     * Removes the files of tombstoned messages, and then their index and tombstone records. Messages delivered to
+     * several mailboxes with single-instance delivery are hard links to the same content, so deleting one only drops
+     * this mailbox's link, and the content is released by the file system once the last mailbox deletes it. Called by
+     * the {@link DeletionReaper}.
+     *
+     * @param fileNames The names of the message files, which were already removed from the cached listing.
+     */
+    void reap(Set<String> fileNames) {
+        FileTime before = getDirectoryModifiedTime();
+        for (String name : fileNames) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(mailDirectory, name).delete();
+        }
+        // The files were already removed from the cached listing and usage, which remain valid if nothing else changed
+        touched(before);
+        removeRecords(indexFile, fileNames);
+        removeRecords(tombstoneFile, fileNames);
+    }
+}
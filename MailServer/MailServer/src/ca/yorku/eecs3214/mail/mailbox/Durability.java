@@ -0,0 +1,264 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Forces delivered messages to disk before their delivery is acknowledged, according to the configured durability
+ * mode (see {@link #MODE}). Storage backends report the files and directories changed by each delivery, and
+ * {@link MailWriter#close()} waits here until they are durable. Callers that must not block, such as event loops,
+ * are instead notified once the files are durable (see {@link MailWriter#close(MailWriter.Completion)}); in message
+ * mode, their files are then forced by a background thread.
+ * <p>
+ * In group commit mode, deliveries completed at about the same time share a single round of forces: each caller
+ * queues its paths and waits, while a background thread takes all the queued requests, forces each distinct path
+ * once, and then releases all the callers together. Requests queued while a round is in progress form the next batch,
+ * and the thread can also wait a short window before each round so more deliveries join it (see
+ * {@link #GROUP_COMMIT_WINDOW}).
+ */
+class Durability {
+
+    /**
+     * How deliveries are made durable, configurable with the <code>mail.delivery.durability</code> system property.
+     */
+    enum Mode {
+        /**
+         * Nothing is forced, and the content is written to disk whenever the operating system does so (the default).
+         */
+        NONE,
+        /**
+         * The files of each message are forced individually before the delivery is acknowledged.
+         */
+        MESSAGE,
+        /**
+         * The files of concurrent deliveries are forced together, and the deliveries acknowledged once all of them are
+         * on disk.
+         */
+        GROUP
+    }
+
+    public static final Mode MODE = Mode.valueOf(System.getProperty("mail.delivery.durability", "none").toUpperCase());
+
+    /**
+     * Number of milliseconds the group commit thread waits for more deliveries after the first one in a batch,
+     * configurable with the <code>mail.delivery.groupCommitWindow</code> system property. The default of 0 starts
+     * each round as soon as a delivery is queued.
+     */
+    public static final long GROUP_COMMIT_WINDOW = Long.getLong("mail.delivery.groupCommitWindow", 0);
+
+    private static final List<Request> PENDING = new ArrayList<>();
+
+    /**
+     * Threads forcing the files of asynchronous deliveries in message mode, created as needed.
+     */
+    private static final ExecutorService FORCERS = MODE != Mode.MESSAGE ? null :
+            Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "durability-force");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        if (MODE == Mode.GROUP) {
+            Thread committer = new Thread(Durability::run, "group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    private Durability() {
+    }
+
+    /**
+     * Makes changed files and directories durable, according to the configured mode. Returns once they are forced to
+     * disk, or immediately if durability is disabled.
+     *
+     * @param paths The files and directories changed by a delivery.
+     * @throws IOException If any of the files could not be forced to disk.
+     */
+    static void sync(Collection<Path> paths) throws IOException {
+        if (MODE == Mode.NONE || paths.isEmpty())
+            return;
+        if (MODE == Mode.MESSAGE) {
+            for (Path path : paths)
+                force(path);
+            return;
+        }
+        Request request = new Request(paths, null);
+        queue(request);
+        request.await();
+    }
+
+    /**
+     * Makes changed files and directories durable without blocking the caller, according to the configured mode.
+     * The completion is called once they are forced to disk, by the thread that forced them, or immediately by the
+     * caller if durability is disabled.
+     *
+     * @param paths      The files and directories changed by a delivery.
+     * @param completion Called with null once the paths are durable, or with the error if any of the files could not
+     *                   be forced to disk.
+     */
+    static void sync(Collection<Path> paths, MailWriter.Completion completion) {
+        if (MODE == Mode.NONE || paths.isEmpty()) {
+            completion.completed(null);
+            return;
+        }
+        if (MODE == Mode.MESSAGE) {
+            FORCERS.execute(() -> {
+                IOException error = null;
+                try {
+                    for (Path path : paths)
+                        force(path);
+                } catch (IOException e) {
+                    error = e;
+                }
+                completion.completed(error);
+            });
+            return;
+        }
+        queue(new Request(paths, completion));
+    }
+
+    /**
+     * Adds a request to the next group commit.
+     */
+    private static void queue(Request request) {
+        synchronized (Durability.class) {
+            PENDING.add(request);
+            Durability.class.notifyAll();
+        }
+    }
+
+    /**
+     * Repeatedly waits for requests, and completes each batch with one round of forces.
+     */
+    private static void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            List<Request> batch;
+            synchronized (Durability.class) {
+                while (PENDING.isEmpty()) {
+                    try {
+                        Durability.class.wait();
+                    } catch (InterruptedException e) {
+                        // Keep waiting
+                    }
+                }
+            }
+            if (GROUP_COMMIT_WINDOW > 0) {
+                try {
+                    // Hold the batch open briefly so concurrent deliveries can join it
+                    Thread.sleep(GROUP_COMMIT_WINDOW);
+                } catch (InterruptedException e) {
+                    // Commit now
+                }
+            }
+            synchronized (Durability.class) {
+                batch = new ArrayList<>(PENDING);
+                PENDING.clear();
+            }
+            Set<Path> paths = new LinkedHashSet<>();
+            for (Request request : batch)
+                paths.addAll(request.paths);
+            Map<Path, IOException> errors = new HashMap<>();
+            for (Path path : paths) {
+                try {
+                    force(path);
+                } catch (IOException e) {
+                    errors.put(path, e);
+                }
+            }
+            for (Request request : batch) {
+                try {
+                    request.complete(errors);
+                } catch (RuntimeException e) {
+                    // A failing completion must not stop the group commits of every other delivery
+                    System.err.println("Error completing a delivery: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the content of a file, or the entries of a directory, to disk. Files removed in the meantime (e.g., by a
+     * deletion or compaction) are ignored, as are directories on platforms that cannot force them.
+     *
+     * @param path The file or directory.
+     * @throws IOException If the file could not be forced.
+     */
+    private static void force(Path path) throws IOException {
+        boolean directory = Files.isDirectory(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(!directory);
+        } catch (NoSuchFileException e) {
+            // Nothing left to force
+        } catch (IOException e) {
+            if (!directory)
+                throw e;
+        }
+    }
+
+    /**
+     * The paths of a delivery waiting for a group commit, and the completion to call once they are durable, if the
+     * caller does not wait for them.
+     */
+    private static class Request {
+
+        private final Collection<Path> paths;
+        private final MailWriter.Completion completion;
+        private boolean done = false;
+        private IOException error = null;
+
+        Request(Collection<Path> paths, MailWriter.Completion completion) {
+            this.paths = paths;
+            this.completion = completion;
+        }
+
+        void complete(Map<Path, IOException> errors) {
+            IOException failure = null;
+            for (Path path : paths) {
+                if (errors.containsKey(path)) {
+                    failure = new IOException("Message could not be saved to disk", errors.get(path));
+                    break;
+                }
+            }
+            if (completion != null) {
+                completion.completed(failure);
+                return;
+            }
+            synchronized (this) {
+                error = failure;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (error != null)
+                throw error;
+        }
+    }
+}
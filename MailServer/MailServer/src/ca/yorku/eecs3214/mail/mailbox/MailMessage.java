@@ -1,6 +1,13 @@
 package ca.yorku.eecs3214.mail.mailbox;
 
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.InflaterInputStream;
 
 /**
  * An individual mail message.
@@ -8,8 +15,13 @@ import java.io.File;
 public class MailMessage {
 
     private final File file;
+    private final long offset;
     private final long fileSize;
+    private final MessageIndex index;
+    private final boolean compressed;
     private boolean deleted;
+    private MessageTable table;
+    private int position;
 
     /**
      * Creates a new mail message object whose content can be retrieved from a specified file.
@@ -17,13 +29,66 @@ public class MailMessage {
      * @param file The file object where the file content is found.
      */
     public MailMessage(File file) {
+        this(file, 0, file.length(), null);
+    }
+
+    /**
+     * Creates a new mail message object whose content can be retrieved from a specified file, with a size that is
+     * already known (e.g., from a cached list of messages), so the file does not need to be accessed.
+     *
+     * @param file     The file object where the file content is found.
+     * @param fileSize The number of bytes in the file.
+     */
+    public MailMessage(File file, long fileSize) {
+        this(file, 0, fileSize, null);
+    }
+
+    /**
+     * Creates a new mail message object with a known location and size, and the index recorded when it was delivered.
+     *
+     * @param file     The file object where the message content is found.
+     * @param offset   The position of the message content in the file, which may contain other messages.
+     * @param fileSize The number of bytes in the message.
+     * @param index    The index of the message content, or null if not available.
+     */
+    MailMessage(File file, long offset, long fileSize, MessageIndex index) {
+        this(file, offset, fileSize, index, false);
+    }
+
+    /**
+     * Creates a new mail message object whose content may be stored compressed (see {@link DirectoryStorage}).
+     *
+     * @param file       The file object where the message content is found.
+     * @param offset     The position of the message content in the file, which may contain other messages.
+     * @param fileSize   The number of bytes in the message, before compression.
+     * @param index      The index of the message content, or null if not available.
+     * @param compressed Whether the file holds the message compressed, after a header with its size.
+     */
+    MailMessage(File file, long offset, long fileSize, MessageIndex index, boolean compressed) {
         this.file = file;
-        this.fileSize = file.length();
+        this.offset = offset;
+        this.fileSize = fileSize;
+        this.index = index;
+        this.compressed = compressed;
         this.deleted = false;
     }
 
     /**
-     * Returns the file object associated to the mail message.
+     * Attaches the message to the table of messages loaded by a session, which holds its deletion tag from now on.
+     *
+     * @param table    The table of loaded messages.
+     * @param position The 0-based position of the message in the table.
+     */
+    void attach(MessageTable table, int position) {
+        this.table = table;
+        this.position = position;
+    }
+
+    /**
+     * Returns the file object associated to the mail message. Depending on the mail storage, the file may also contain
+     * other messages, so the content must be read from {@link #getContentOffset()}, and at most
+     * {@link #getFileSize()} bytes. If the message is compressed (see {@link #isCompressed()}), the file content cannot
+     * be used as is, and must be read with {@link #openContent()}.
      *
      * @return A File object containing the content of the mail message.
      */
@@ -31,6 +96,70 @@ public class MailMessage {
         return file;
     }
 
+    /**
+     * Returns the position of the mail message's content in its file.
+     *
+     * @return The offset of the first byte of the message, which is 0 if the file contains only this message.
+     */
+    public long getContentOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns true if the message is stored compressed, so its content is only available from {@link #openContent()}.
+     *
+     * @return true if the file content is compressed, and false if it holds the message as is.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Opens a stream that reads the content of the mail message, decompressing it as it is read if needed.
+     *
+     * @return An input stream that reaches its end after the last byte of the message.
+     * @throws IOException If the file could not be opened.
+     */
+    public InputStream openContent() throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        InputStream in;
+        try {
+            if (compressed) {
+                channel.position(offset + DirectoryStorage.COMPRESSED_HEADER_LENGTH);
+                in = new InflaterInputStream(Channels.newInputStream(channel));
+            } else {
+                channel.position(offset);
+                in = Channels.newInputStream(channel);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new FilterInputStream(in) {
+            private long remaining = fileSize;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                int b = super.read();
+                if (b >= 0)
+                    remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                int read = super.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0)
+                    remaining -= read;
+                return read;
+            }
+        };
+    }
+
     /**
      * Returns the number of bytes in the mail message, including headers.
      *
@@ -40,13 +169,41 @@ public class MailMessage {
         return fileSize;
     }
 
+    /**
+     * Returns a unique ID for the message, which does not change across sessions, as used by the POP3 UIDL command.
+     * Messages delivered without an index are identified by their file name and size.
+     *
+     * @return A string of printable ASCII characters identifying the message.
+     */
+    public String getUniqueId() {
+        if (index != null)
+            return index.getUniqueId();
+        String name = file.getName();
+        if (name.endsWith(Mailbox.COMPRESSED_FILE_SUFFIX))
+            name = name.substring(0, name.length() - Mailbox.COMPRESSED_FILE_SUFFIX.length());
+        else if (name.endsWith(Mailbox.MAIL_FILE_SUFFIX))
+            name = name.substring(0, name.length() - Mailbox.MAIL_FILE_SUFFIX.length());
+        return offset > 0 ? name + "." + offset + "-" + fileSize : name + "-" + fileSize;
+    }
+
+    /**
+     * Returns the number of bytes at the start of the message that contain the headers (including the empty line that
+     * follows them) and a number of lines of the body, as sent by the POP3 TOP command.
+     *
+     * @param lines The number of body lines.
+     * @return The number of bytes, or -1 if it is not known without reading the message.
+     */
+    public long getTopLength(int lines) {
+        return index != null ? index.getTopLength(lines, fileSize) : -1;
+    }
+
     /**
      * Returns true if the message is tagged to be deleted.
      *
      * @return true if the message is tagged to be deleted, and false otherwise.
      */
     public boolean isDeleted() {
-        return deleted;
+        return table != null ? table.isDeleted(position) : deleted;
     }
 
     /**
@@ -56,13 +213,19 @@ public class MailMessage {
      * <code>deleteItemsTaggedForDeletion()</code> method in Mailbox.
      */
     public void tagForDeletion() {
-        this.deleted = true;
+        if (table != null)
+            table.setDeleted(position, true);
+        else
+            this.deleted = true;
     }
 
     /**
      * Resets the deletion tag so the message is no longer marked to be deleted.
      */
     public void undelete() {
-        this.deleted = false;
+        if (table != null)
+            table.setDeleted(position, false);
+        else
+            this.deleted = false;
     }
 }
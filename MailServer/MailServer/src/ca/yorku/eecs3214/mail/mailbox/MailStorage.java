@@ -0,0 +1,115 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Storage backend holding the messages of an individual user's mailbox. The backend is selected for all mailboxes with
+ * the <code>mail.storage</code> system property (see {@link #forUser(String)}); the SMTP and POP3 servers must be
+ * started with the same backend.
+ */
+interface MailStorage {
+
+    /**
+     * Name of the backend used for all mailboxes, configurable with the <code>mail.storage</code> system property:
+     * <code>directory</code> (the default) stores each message in its own file (see {@link DirectoryStorage}), and
+     * <code>segment</code> appends messages to a few large files per mailbox (see {@link SegmentStorage}).
+     */
+    String BACKEND = System.getProperty("mail.storage", "directory");
+
+    /**
+     * Creates the storage of a user's mailbox, using the configured backend.
+     *
+     * @param user The mailbox's user.
+     * @return A new storage object for the mailbox.
+     */
+    static MailStorage forUser(String user) {
+        if (BACKEND.equalsIgnoreCase("segment"))
+            return new SegmentStorage(user);
+        if (!BACKEND.equalsIgnoreCase("directory"))
+            throw new IllegalArgumentException("Unknown mail storage backend: " + BACKEND);
+        return new DirectoryStorage(user);
+    }
+
+    /**
+     * Lists the messages in the mailbox, in delivery order. Messages listed remain readable until
+     * {@link #release()} is called, unless they are deleted.
+     *
+     * @return A new list of messages, none of them tagged for deletion.
+     */
+    List<MailMessage> loadMessages();
+
+    /**
+     * Signals that the messages obtained from {@link #loadMessages()} are no longer used.
+     */
+    void release();
+
+    /**
+     * Returns the total size of the messages stored in the mailbox.
+     *
+     * @return The number of bytes used by the mailbox.
+     */
+    long getUsage();
+
+    /**
+     * Starts storing a new message, whose content is then written to the returned object.
+     *
+     * @return The message being stored.
+     * @throws IOException If the message could not be created.
+     */
+    PendingMessage createMessage() throws IOException;
+
+    /**
+     * Stores a new message whose complete content is found in an existing file, which is not modified. Used for
+     * single-instance delivery.
+     *
+     * @param content The file containing the message content.
+     * @param size    The size of the message, in bytes.
+     * @param index   The index of the message.
+     * @param changed Collection where the files and directories changed by this operation are added, so they can be
+     *                forced to disk (see {@link Durability}).
+     * @throws IOException If the message could not be stored.
+     */
+    void addMessage(Path content, long size, MessageIndex index, Collection<Path> changed) throws IOException;
+
+    /**
+     * Permanently deletes messages obtained from {@link #loadMessages()}. The deletion is saved, and the messages are
+     * no longer listed, once this method returns, but backends may release their content later in the background.
+     *
+     * @param messages The messages to be deleted.
+     */
+    void deleteMessages(Collection<MailMessage> messages);
+
+    /**
+     * A message whose content is being written. Becomes visible in the mailbox once committed.
+     */
+    interface PendingMessage {
+
+        /**
+         * Returns the stream where the message content is written. The stream is closed by the caller before the
+         * message is committed.
+         *
+         * @return The output stream of the message.
+         */
+        OutputStream getOutputStream();
+
+        /**
+         * Completes the message, making it visible in the mailbox.
+         *
+         * @param size    The size of the message, in bytes.
+         * @param index   The index of the message.
+         * @param changed Collection where the files and directories changed by this operation are added, so they can
+         *                be forced to disk (see {@link Durability}).
+         * @throws IOException If the message could not be completed.
+         */
+        void commit(long size, MessageIndex index, Collection<Path> changed) throws IOException;
+
+        /**
+         * Abandons the message, deleting any content written so far. Errors are ignored.
+         */
+        void discard();
+    }
+}
@@ -1,35 +1,102 @@
 package ca.yorku.eecs3214.mail.mailbox;
 
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Writer interface that saves the content into a set of user mailboxes. Can be used in the same way as any other
  * regular Writer (e.g., FileWriter), as well as in combination with a BufferedWriter or PrintWriter.
+ * <p>
+ * Messages are stored in the format in which they are transferred with DATA, so that they can be sent as they are by
+ * RETR. Characters written to the Writer are encoded as UTF-8, line feeds not preceded by a carriage return are
+ * converted to CRLF, and lines that start with a period are dot-stuffed.
+ * <p>
+ * The content is encoded only once, regardless of the number of recipients. If single-instance delivery is enabled
+ * (see {@link #SINGLE_INSTANCE_DELIVERY}) and there is more than one recipient, the content is also written only once,
+ * to a spool file that is added to each recipient's mailbox when the MailWriter is closed (as a hard link, with the
+ * default mail storage). If the delivery pipeline is enabled (see {@link DeliveryQueue}), the content is always written
+ * to a spool file, which is handed to the pipeline when the MailWriter is closed.
+ * <p>
+ * While the content is written, the MailWriter also builds the message's index (see {@link MessageIndex}), which is
+ * saved in each mailbox along with the message.
  */
 public class MailWriter extends Writer {
 
     public static final int BUFFER_SIZE = 4096;
-    private final Collection<Writer> writers;
-    private final StringBuffer buffer;
+
+    /**
+     * Whether messages with multiple recipients are stored once and shared by all recipient mailboxes. Enabled with
+     * the <code>mail.delivery.singleInstance</code> system property.
+     */
+    public static final boolean SINGLE_INSTANCE_DELIVERY = Boolean.getBoolean("mail.delivery.singleInstance");
+    public static final File SPOOL_DIRECTORY = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, ".spool");
+
+    private final List<Mailbox> linkedRecipients = new ArrayList<>();
+    private final List<MailStorage.PendingMessage> messages = new ArrayList<>();
+    private final List<OutputStream> outputs = new ArrayList<>();
+    private final int recipientCount;
+    private final FanOutStream fanOut;
+    private final Writer encoder;
+    private final char[] buffer;
+    private int count = 0;
+    private final byte[] lineBuffer = new byte[BUFFER_SIZE];
+    private int lineCount = 0;
+    private long size = 0;
+    private final MessageIndex.Builder indexBuilder = new MessageIndex.Builder();
+    private File spoolFile = null;
+    private boolean atLineStart = true;
+    private boolean afterCarriageReturn = false;
 
     /**
      * Creates a new MailWriter for a collection of mailbox recipients. Any content written to this MailWriter will be
      * copied to a new mail message in each of the mailboxes with exactly the same content.
      *
      * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @throws IOException If there is an exception while creating any of the mailbox files.
      */
-    public MailWriter(Collection<Mailbox> recipients) {
-        writers = recipients.stream().map(Mailbox::getNewMessageWriter).collect(Collectors.toList());
-        buffer = new StringBuffer(BUFFER_SIZE);
+    public MailWriter(Collection<Mailbox> recipients) throws IOException {
+        buffer = new char[BUFFER_SIZE];
+        recipientCount = recipients.size();
+        fanOut = new FanOutStream();
+        encoder = new OutputStreamWriter(new TextStream(), StandardCharsets.UTF_8);
+        try {
+            if (DeliveryQueue.ENABLED || (SINGLE_INSTANCE_DELIVERY && recipients.size() > 1)) {
+                //noinspection ResultOfMethodCallIgnored
+                SPOOL_DIRECTORY.mkdirs();
+                spoolFile = Files.createTempFile(SPOOL_DIRECTORY.toPath(), "", Mailbox.MAIL_FILE_SUFFIX).toFile();
+                outputs.add(new FileOutputStream(spoolFile));
+                linkedRecipients.addAll(recipients);
+            } else {
+                for (Mailbox mailbox : recipients) {
+                    MailStorage.PendingMessage message = mailbox.getStorage().createMessage();
+                    messages.add(message);
+                    outputs.add(message.getOutputStream());
+                }
+            }
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
     }
 
     /**
      * Writes the content to an internal buffer that will eventually be written to messages in all mailboxes. This is
      * the basis for all other <code>write()</code> methods, as they internally call this method with appropriate
-     * values.
+     * values. The content is converted to the stored format as described in the class documentation.
      *
      * @param cbuf Array of characters to be written
      * @param off  Offset from which to start writing characters
@@ -37,37 +104,287 @@ public class MailWriter extends Writer {
      */
     @Override
     public synchronized void write(char[] cbuf, int off, int len) throws IOException {
-        if (buffer.length() + len > buffer.capacity())
+        if (lineCount > 0)
+            flush();
+        if (count + len > buffer.length) {
+            flush();
+            if (len > buffer.length) {
+                encoder.write(cbuf, off, len);
+                encoder.flush();
+                return;
+            }
+        }
+        System.arraycopy(cbuf, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * Writes a line of content received with DATA, followed by CRLF. Lines received with DATA are already in the format
+     * in which messages are stored (i.e., dot-stuffed), so the bytes are saved as they were received, without being
+     * decoded.
+     *
+     * @param b   Array containing the line
+     * @param off Offset of the first byte of the line
+     * @param len Number of bytes in the line, not including the line terminator
+     * @throws IOException If there is an exception while saving content into any of the mailbox files.
+     */
+    public synchronized void writeLine(byte[] b, int off, int len) throws IOException {
+        if (count > 0 || lineCount + len + 2 > lineBuffer.length)
             flush();
-        buffer.append(cbuf, off, len);
+        if (len + 2 > lineBuffer.length) {
+            fanOut.write(b, off, len);
+            fanOut.write('\r');
+            fanOut.write('\n');
+            atLineStart = true;
+            afterCarriageReturn = false;
+            return;
+        }
+        System.arraycopy(b, off, lineBuffer, lineCount, len);
+        lineCount += len;
+        lineBuffer[lineCount++] = '\r';
+        lineBuffer[lineCount++] = '\n';
+        atLineStart = true;
+        afterCarriageReturn = false;
     }
 
     /**
-     * Flushes the content into the individual mailboxes.
+     * Writes content received as raw bytes (e.g., a BDAT chunk), which is saved without being decoded. Messages are
+     * stored in the same format in which they are transferred with DATA, so lines that start with a period are
+     * dot-stuffed (i.e., an extra period is added) as they are written.
+     *
+     * @param b   Array of bytes to be written
+     * @param off Offset from which to start writing bytes
+     * @param len Number of bytes to write
+     * @throws IOException If there is an exception while saving content into any of the mailbox files.
+     */
+    public synchronized void writeBinary(byte[] b, int off, int len) throws IOException {
+        flush();
+        writeStuffed(b, off, len);
+    }
+
+    /**
+     * Writes bytes to every mailbox, adding a period at the start of each line that starts with one.
+     */
+    private void writeStuffed(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (atLineStart && b[i] == '.') {
+                fanOut.write(b, start, i - start);
+                fanOut.write('.');
+                start = i;
+            }
+            atLineStart = b[i] == '\n';
+            afterCarriageReturn = b[i] == '\r';
+        }
+        fanOut.write(b, start, off + len - start);
+    }
+
+    /**
+     * Flushes the content into the individual mailboxes (or into the shared spool file).
      *
      * @throws IOException If there is an exception while saving content into any of the mailbox files.
      */
     @Override
     public synchronized void flush() throws IOException {
-        if (buffer.length() == 0)
-            return;
-        for (Writer w : writers) {
-            w.write(buffer.toString());
-            w.flush();
+        if (lineCount > 0) {
+            fanOut.write(lineBuffer, 0, lineCount);
+            lineCount = 0;
         }
-        buffer.setLength(0);
+        if (count == 0)
+            return;
+        encoder.write(buffer, 0, count);
+        encoder.flush();
+        count = 0;
     }
 
     /**
-     * Closes the MailWriter and corresponding mailbox item writers.
+     * Closes the MailWriter and corresponding mailbox item writers. With single-instance delivery, this is when the
+     * message becomes visible in the recipients' mailboxes; with the delivery pipeline, the message is queued and
+     * becomes visible once a worker delivers it. If durability is enabled (see {@link Durability#MODE}),
+     * this method only returns once the messages are forced to disk, so the delivery can be acknowledged.
      *
      * @throws IOException If there is an exception while saving or closing any of the mailbox files.
      */
     @Override
     public void close() throws IOException {
+        MessageIndex index = finish();
+        if (spoolFile != null && DeliveryQueue.ENABLED) {
+            DeliveryQueue.submit(spoolFile.toPath(), size, index, linkedRecipients);
+            spoolFile = null;
+        } else {
+            Durability.sync(store(index));
+        }
+        Metrics.FAN_OUT.record(recipientCount);
+    }
+
+    /**
+     * Closes the MailWriter like {@link #close()}, but without waiting for the messages to be forced to disk, or for
+     * room in the delivery pipeline's queue, so that an event loop can acknowledge the delivery once it completes
+     * instead of blocking every connection it serves. If the delivery fails, the messages written so far are
+     * discarded before the completion is called.
+     *
+     * @param completion Called once the delivery can be acknowledged, or failed. Called by the thread that forced the
+     *                   messages to disk or queued them, or by the caller before this method returns if the delivery
+     *                   completed (or failed) immediately.
+     */
+    public void close(Completion completion) {
+        MessageIndex index;
+        Collection<Path> changed = null;
+        try {
+            index = finish();
+            if (spoolFile == null || !DeliveryQueue.ENABLED)
+                changed = store(index);
+        } catch (IOException e) {
+            discard();
+            completion.completed(e);
+            return;
+        }
+        if (changed != null) {
+            Durability.sync(changed, error -> completed(error, completion));
+            return;
+        }
+        DeliveryQueue.submit(spoolFile.toPath(), size, index, linkedRecipients, error -> {
+            if (error == null)
+                spoolFile = null;
+            completed(error, completion);
+        });
+    }
+
+    private void completed(IOException error, Completion completion) {
+        if (error != null)
+            discard();
+        else
+            Metrics.FAN_OUT.record(recipientCount);
+        completion.completed(error);
+    }
+
+    /**
+     * Writes the remaining content, and closes the outputs.
+     *
+     * @return The index of the complete message.
+     */
+    private MessageIndex finish() throws IOException {
         flush();
-        for (Writer w : writers) {
-            w.close();
+        encoder.close();
+        return indexBuilder.build();
+    }
+
+    /**
+     * Adds the complete message to the recipients' mailboxes, from the spool file or by committing each mailbox's
+     * message.
+     *
+     * @param index The index of the message.
+     * @return The files and directories changed, to be made durable before the delivery is acknowledged.
+     */
+    private Collection<Path> store(MessageIndex index) throws IOException {
+        Set<Path> changed = new LinkedHashSet<>();
+        if (spoolFile != null) {
+            for (Mailbox mailbox : linkedRecipients)
+                mailbox.getStorage().addMessage(spoolFile.toPath(), size, index, changed);
+            // The content remains available in each mailbox
+            Files.delete(spoolFile.toPath());
+            spoolFile = null;
+        }
+        for (MailStorage.PendingMessage message : messages)
+            message.commit(size, index, changed);
+        messages.clear();
+        return changed;
+    }
+
+    /**
+     * Closes the MailWriter and deletes the messages written so far, so that an incomplete message is not delivered.
+     * Used when the transfer of the message is aborted. Errors are ignored, as the content is being discarded anyway.
+     */
+    public void discard() {
+        count = 0;
+        lineCount = 0;
+        for (OutputStream out : outputs) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Ignored, the content is deleted below
+            }
+        }
+        if (spoolFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            spoolFile.delete();
+        }
+        for (MailStorage.PendingMessage message : messages)
+            message.discard();
+        messages.clear();
+    }
+
+    /**
+     * Notified once an asynchronous {@link #close(Completion)} completes.
+     */
+    @FunctionalInterface
+    public interface Completion {
+
+        /**
+         * Called once the delivery completed or failed.
+         *
+         * @param error null if the delivery can be acknowledged, or the reason it failed.
+         */
+        void completed(IOException error);
+    }
+
+    /**
+     * Output stream that receives the encoded characters written to the MailWriter, and converts them to the stored
+     * format before they are copied to every mailbox.
+     */
+    private class TextStream extends OutputStream {
+
+        private final byte[] carriageReturn = {'\r'};
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n' && !(i > start ? b[i - 1] == '\r' : afterCarriageReturn)) {
+                    writeStuffed(b, start, i - start);
+                    writeStuffed(carriageReturn, 0, 1);
+                    start = i;
+                }
+            }
+            writeStuffed(b, start, off + len - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            fanOut.close();
+        }
+    }
+
+    /**
+     * Output stream that copies the encoded content to the output of every mailbox file (or to the spool file).
+     */
+    private class FanOutStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            for (OutputStream out : outputs)
+                out.write(b);
+            indexBuilder.update(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (OutputStream out : outputs)
+                out.write(b, off, len);
+            indexBuilder.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (OutputStream out : outputs)
+                out.close();
         }
     }
 }
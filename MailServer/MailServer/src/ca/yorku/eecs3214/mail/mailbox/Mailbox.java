@@ -1,20 +1,34 @@
 package ca.yorku.eecs3214.mail.mailbox;
 
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
 import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class Mailbox implements Iterable<MailMessage> {
 
-    public static final String USER_FILE_NAME = "users.txt";
-    public static final File USER_MAIL_BASE_DIRECTORY = new File("mail.store");
+    /**
+     * Path of the users database, configurable with the <code>mail.users.file</code> system property.
+     */
+    public static final String USER_FILE_NAME = System.getProperty("mail.users.file", "users.txt");
+
+    /**
+     * Directory holding every user's mailbox, configurable with the <code>mail.store.dir</code> system property.
+     */
+    public static final File USER_MAIL_BASE_DIRECTORY = new File(System.getProperty("mail.store.dir", "mail.store"));
     public static final String MAIL_FILE_SUFFIX = ".mail";
+    public static final String COMPRESSED_FILE_SUFFIX = ".mail.z";
+    public static final String INDEX_FILE_NAME = ".index";
 
-    private static HashMap<String, String> userMap = null;
+    /**
+     * Maximum number of bytes stored in each mailbox, configurable with the <code>mail.quota.bytes</code> system
+     * property. A value of 0 disables quotas.
+     */
+    public static final long QUOTA = Long.getLong("mail.quota.bytes", 0);
 
     private final String user;
-    private final File mailDirectory;
-    private List<MailMessage> messageList = null;
+    private final MailStorage storage;
+    private MessageTable messageList = null;
 
     /**
      * Initialized the mailbox for a specified user.
@@ -27,31 +41,17 @@ public class Mailbox implements Iterable<MailMessage> {
         if (!isValidUser(user))
             throw new InvalidUserException();
         this.user = user;
-        this.mailDirectory = new File(USER_MAIL_BASE_DIRECTORY, user);
+        this.storage = MailStorage.forUser(user);
     }
 
     /**
-     * Initializes the map of user addresses and passwords from the users database. Only retrieves the data once, so
-     * changes in the database require the server to be restarted.
+     * Returns the map of user addresses and passwords from the users database. The map is a snapshot that is replaced
+     * when the database changes (see {@link UserDirectory}), so callers should not keep it.
      *
      * @return A map from a user's address to the user's password.
      */
-    private static synchronized Map<String, String> getUserMap() {
-        if (userMap != null)
-            return userMap;
-        userMap = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] split = line.split(" ", 2);
-                userMap.put(split[0], split[1]);
-            }
-        } catch (FileNotFoundException e) {
-            // Do nothing, there are no users
-        } catch (IOException e) {
-            // Do nothing, accept no users
-        }
-        return userMap;
+    private static Map<String, String> getUserMap() {
+        return UserDirectory.getUsers();
     }
 
     /**
@@ -69,42 +69,86 @@ public class Mailbox implements Iterable<MailMessage> {
     }
 
     /**
-     * Checks the user's password and, if valid, loads the user's mailbox messages from the mail storage.
+     * Checks the user's password and, if valid, locks the user's maildrop and loads the user's mailbox messages from
+     * the mail storage (see {@link MailStorage}). The maildrop remains locked until {@link #close()} is called, so no
+     * other Mailbox object in this process can load the messages in the meantime. Deliveries to the mailbox are not
+     * blocked by the lock.
      *
      * @param password The user's password, unencrypted.
      * @throws MailboxNotAuthenticatedException If the password was not provided or is incorrect.
+     * @throws MailboxLockedException           If the maildrop is locked by another Mailbox object.
      */
-    public void loadMessages(String password) throws MailboxNotAuthenticatedException {
+    public void loadMessages(String password) throws MailboxNotAuthenticatedException, MailboxLockedException {
         if (password == null || !password.equals(getUserMap().get(user)))
             throw new MailboxNotAuthenticatedException();
-        this.messageList = Collections.emptyList();
-        if (mailDirectory.exists() && mailDirectory.isDirectory()) {
-            File[] files = mailDirectory.listFiles(f -> f.isFile() && f.getName().endsWith(MAIL_FILE_SUFFIX));
-            if (files != null)
-                this.messageList = Arrays.stream(files).sorted().map(MailMessage::new).collect(Collectors.toList());
+        if (!MaildropLocks.tryLock(user, this))
+            throw new MailboxLockedException();
+        if (messageList != null)
+            storage.release();
+        long start = System.nanoTime();
+        try {
+            this.messageList = new MessageTable(storage.loadMessages());
+        } catch (RuntimeException | Error e) {
+            // Otherwise the maildrop would remain locked, as close() does nothing without loaded messages
+            this.messageList = null;
+            MaildropLocks.unlock(user, this);
+            throw e;
         }
+        Metrics.MAILBOX_LOAD.record((System.nanoTime() - start) / 1000);
     }
 
     /**
-     * Creates a new file to store a new incoming message, as well as a FileWriter associated to the file. Used by the
-     * MailWriter class.
+     * Releases the messages loaded from the mailbox and unlocks the maildrop, which must be done once the
+     * corresponding session is complete. Messages deleted by the session must be deleted with
+     * {@link #deleteMessagesTaggedForDeletion()} before this method is called. Does nothing if the messages were not
+     * loaded.
+     */
+    public void close() {
+        if (messageList == null)
+            return;
+        messageList = null;
+        storage.release();
+        MaildropLocks.unlock(user, this);
+    }
+
+    /**
+     * Returns the total size of the messages stored in the mailbox, including messages tagged for deletion by a POP3
+     * session that is still in progress. The size is kept in process-wide counters, so the mail storage does not need
+     * to be listed on every call.
      *
-     * @return A FileWriter object associated to the new file.
-     */
-    public FileWriter getNewMessageWriter() {
-        // Creates the directory if it doesn't exist
-        //noinspection ResultOfMethodCallIgnored
-        mailDirectory.mkdirs();
-        for (int i = 0; ; i++) {
-            try {
-                File file = new File(mailDirectory, i + MAIL_FILE_SUFFIX);
-                if (!file.createNewFile())
-                    continue;
-                return new FileWriter(file);
-            } catch (IOException e) {
-                // continue, try next index
-            }
-        }
+     * @return The number of bytes used by the mailbox.
+     */
+    public long getUsage() {
+        return storage.getUsage();
+    }
+
+    /**
+     * Checks if a new message fits in the mailbox's quota (see {@link #QUOTA}).
+     *
+     * @param size The size of the new message, or 0 if it is not known.
+     * @return true if the message can be accepted, or false if the mailbox would exceed its quota.
+     */
+    public boolean hasRoomFor(long size) {
+        return QUOTA <= 0 || getUsage() + size <= QUOTA;
+    }
+
+    /**
+     * Creates a writer that saves its content as a new message in this mailbox.
+     *
+     * @return A MailWriter whose content is delivered to this mailbox when it is closed.
+     * @throws IOException If the message could not be created.
+     */
+    public MailWriter getNewMessageWriter() throws IOException {
+        return new MailWriter(List.of(this));
+    }
+
+    /**
+     * Returns the storage backend holding the mailbox's messages. Used by the MailWriter class.
+     *
+     * @return The storage of this mailbox.
+     */
+    MailStorage getStorage() {
+        return storage;
     }
 
     /**
@@ -139,8 +183,57 @@ public class Mailbox implements Iterable<MailMessage> {
         return messageList.get(index - 1);
     }
 
+    /**
+     * Checks if the mail message at a particular index is tagged for deletion. The index is 1-based, as in
+     * {@link #getMailMessage(int)}.
+     *
+     * @param index The index of the message.
+     * @return true if the message is tagged to be deleted, and false otherwise.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public boolean isDeleted(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        if (messageList == null)
+            throw new MailboxNotAuthenticatedException();
+        checkIndex(index);
+        return messageList.isDeleted(index - 1);
+    }
+
+    /**
+     * Returns the size of the mail message at a particular index, without accessing the message itself. The index is
+     * 1-based, as in {@link #getMailMessage(int)}.
+     *
+     * @param index The index of the message.
+     * @return The size of the mail message, in bytes.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
+     */
+    public long getMessageSize(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
+        if (messageList == null)
+            throw new MailboxNotAuthenticatedException();
+        checkIndex(index);
+        return messageList.getSize(index - 1);
+    }
+
+    /**
+     * Resets the deletion tag of all mail messages in the mailbox, as done by the POP3 RSET command.
+     *
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    public void undeleteAll() throws MailboxNotAuthenticatedException {
+        if (messageList == null)
+            throw new MailboxNotAuthenticatedException();
+        messageList.undeleteAll();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 1 || index > messageList.count(true))
+            throw new IndexOutOfBoundsException(index);
+    }
+
     /**
      * Returns the number of mail messages in the mailbox.
+     * The value is kept up to date as messages are tagged for deletion, so it is returned in constant time.
      *
      * @param includeDeleted Should be set to true if deleted messages should be included, or false if they should be
      *                       ignored.
@@ -150,13 +243,12 @@ public class Mailbox implements Iterable<MailMessage> {
     public int size(boolean includeDeleted) throws MailboxNotAuthenticatedException {
         if (messageList == null)
             throw new MailboxNotAuthenticatedException();
-        if (includeDeleted)
-            return messageList.size();
-        return (int) messageList.stream().filter(item -> !item.isDeleted()).count();
+        return messageList.count(includeDeleted);
     }
 
     /**
      * Returns the total size across all mail messages in the mailbox.
+     * The value is kept up to date as messages are tagged for deletion, so it is returned in constant time.
      *
      * @param includeDeleted Should be set to true if deleted messages should be included, or false if they should be
      *                       ignored.
@@ -166,22 +258,20 @@ public class Mailbox implements Iterable<MailMessage> {
     public long getTotalUndeletedFileSize(boolean includeDeleted) throws MailboxNotAuthenticatedException {
         if (messageList == null)
             throw new MailboxNotAuthenticatedException();
-        return messageList.stream().filter(item -> (includeDeleted || !item.isDeleted())).mapToLong(MailMessage::getFileSize).sum();
+        return messageList.totalSize(includeDeleted);
     }
 
     /**
-     * Deletes the files for each message currently tagged for deletion. This operation cannot be undone, and for POP3
-     * should only be performed when the corresponding session is complete. If the corresponding messages have not been
-     * loaded, this method performs no operation.
+     * Deletes each message currently tagged for deletion from the mail storage. This operation cannot be undone, and
+     * for POP3 should only be performed when the corresponding session is complete. If the corresponding messages have
+     * not been loaded, this method performs no operation.
      */
     public void deleteMessagesTaggedForDeletion() {
         if (messageList == null)
             return;
-        for (MailMessage item : messageList) {
-            if (item.isDeleted())
-                //noinspection ResultOfMethodCallIgnored
-                item.getFile().delete();
-        }
+        List<MailMessage> deleted = messageList.getDeleted();
+        if (!deleted.isEmpty())
+            storage.deleteMessages(deleted);
     }
 
     /**
@@ -190,6 +280,12 @@ public class Mailbox implements Iterable<MailMessage> {
     public static class InvalidUserException extends RuntimeException {
     }
 
+    /**
+     * Exception used when attempting to load the messages of a mailbox whose maildrop is locked by another session.
+     */
+    public static class MailboxLockedException extends RuntimeException {
+    }
+
     /**
      * Exception used when attempting to perform operations that require authentication, but the authentication was not
      * performed or was unsuccessful.
@@ -0,0 +1,133 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide counters of the number of bytes stored in each user's mailbox, used to check quotas without
+ * listing the mail directory. Counters are updated incrementally by the deliveries and deletions performed by this
+ * process. As in {@link MessageListingCache}, each counter records the modification time of the mail directory, so a
+ * change made by another process makes the counter stale, and it is then recomputed from a new listing.
+ * <p>
+ * Each mailbox also has a version number, incremented on every change, so that a usage computed from a listing that
+ * was obtained concurrently with a delivery or deletion is not stored.
+ */
+class MailboxUsage {
+
+    private final Map<String, Usage> usages = new HashMap<>();
+    private final Map<String, Long> versions = new HashMap<>();
+
+    /**
+     * Returns the number of bytes used by a mailbox, if known and the mail directory was not modified since.
+     *
+     * @param user     The mailbox's user.
+     * @param modified The current modification time of the mail directory.
+     * @return The number of bytes, or -1 if the usage is unknown or out of date.
+     */
+    synchronized long getBytes(String user, FileTime modified) {
+        Usage usage = usages.get(user);
+        if (usage == null || !usage.modified.equals(modified))
+            return -1;
+        return usage.bytes;
+    }
+
+    /**
+     * Returns the current version of a mailbox. Must be obtained before listing the mailbox, and provided when the
+     * usage computed from the listing is stored with {@link #put(String, long, long, FileTime)}.
+     *
+     * @param user The mailbox's user.
+     * @return The number of changes made to the mailbox by this process.
+     */
+    synchronized long version(String user) {
+        return versions.getOrDefault(user, 0L);
+    }
+
+    /**
+     * Stores the usage of a mailbox, unless the mailbox was changed by this process since it was listed.
+     *
+     * @param user     The mailbox's user.
+     * @param bytes    The total size of the messages.
+     * @param version  The version of the mailbox obtained before the listing.
+     * @param modified The modification time of the mail directory obtained before the listing.
+     */
+    synchronized void put(String user, long bytes, long version, FileTime modified) {
+        if (version(user) == version)
+            usages.put(user, new Usage(bytes, modified));
+    }
+
+    /**
+     * Records a message added to a mailbox. The usage is only updated if it corresponds to the directory as it was
+     * right before the message was added; otherwise, another process changed the directory in the meantime, and the
+     * usage is discarded.
+     *
+     * @param user   The mailbox's user.
+     * @param size   The size of the message.
+     * @param before The modification time of the mail directory before the message was added.
+     * @param after  The modification time of the mail directory after the message was added.
+     */
+    synchronized void added(String user, long size, FileTime before, FileTime after) {
+        update(user, size, before, after);
+    }
+
+    /**
+     * Records messages removed from a mailbox. As with {@link #added(String, long, FileTime, FileTime)}, the usage is
+     * discarded if the directory was changed by another process before the messages were removed.
+     *
+     * @param user   The mailbox's user.
+     * @param bytes  The total size of the removed messages.
+     * @param before The modification time of the mail directory before the messages were removed.
+     * @param after  The modification time of the mail directory after the messages were removed.
+     */
+    synchronized void removed(String user, long bytes, FileTime before, FileTime after) {
+        update(user, -bytes, before, after);
+    }
+
+    /**
+     * Records a change to the mail directory that does not affect the usage, e.g., the removal of files already
+     * deducted from it. The usage remains valid only if it corresponds to the directory as it was right before the
+     * change.
+     *
+     * @param user   The mailbox's user.
+     * @param before The modification time of the mail directory before the change.
+     * @param after  The modification time of the mail directory after the change.
+     */
+    synchronized void touched(String user, FileTime before, FileTime after) {
+        update(user, 0, before, after);
+    }
+
+    /**
+     * Discards the usage of a mailbox, e.g., when files of unknown size are removed from it.
+     *
+     * @param user The mailbox's user.
+     */
+    synchronized void invalidate(String user) {
+        versions.merge(user, 1L, Long::sum);
+        usages.remove(user);
+    }
+
+    private void update(String user, long delta, FileTime before, FileTime after) {
+        versions.merge(user, 1L, Long::sum);
+        Usage usage = usages.get(user);
+        if (usage == null)
+            return;
+        if (usage.modified.equals(before))
+            usages.put(user, new Usage(usage.bytes + delta, after));
+        else
+            usages.remove(user);
+    }
+
+    /**
+     * The usage of a mailbox, and the modification time of the mail directory it corresponds to.
+     */
+    private static class Usage {
+
+        final long bytes;
+        final FileTime modified;
+
+        Usage(long bytes, FileTime modified) {
+            this.bytes = bytes;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide registry of the exclusive locks held on maildrops by POP3 sessions (RFC 1939, section 8): while a
+ * session has a user's messages loaded, no other session can load them. Locks are never waited for; an attempt to lock
+ * a maildrop that is already locked fails immediately.
+ * <p>
+ * The registry is a concurrent map from user to lock owner, so acquiring and releasing a lock are single atomic map
+ * operations, and sessions for different users never contend. Deliveries do not use these locks: messages delivered
+ * while a maildrop is locked are simply not seen by the session holding the lock.
+ */
+class MaildropLocks {
+
+    private static final Map<String, Object> OWNERS = new ConcurrentHashMap<>();
+
+    private MaildropLocks() {
+    }
+
+    /**
+     * Locks a user's maildrop, if it is not already locked.
+     *
+     * @param user  The mailbox's user.
+     * @param owner The object holding the lock, which must be provided to release it.
+     * @return true if the lock was acquired, or false if it is held by another owner.
+     */
+    static boolean tryLock(String user, Object owner) {
+        Object current = OWNERS.putIfAbsent(user, owner);
+        return current == null || current == owner;
+    }
+
+    /**
+     * Releases the lock on a user's maildrop. Does nothing if the lock is not held by the owner.
+     *
+     * @param user  The mailbox's user.
+     * @param owner The object holding the lock.
+     */
+    static void unlock(String user, Object owner) {
+        OWNERS.remove(user, owner);
+    }
+}
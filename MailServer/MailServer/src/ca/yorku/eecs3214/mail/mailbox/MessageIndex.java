@@ -0,0 +1,193 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small index of a message's content, recorded when the message is delivered: a unique ID, the length of the headers
+ * (including the empty line that separates them from the body), and the position where each of the first lines of the
+ * body ends. Allows the POP3 UIDL command to be answered without opening message files, and the TOP command to read
+ * only the bytes it needs.
+ * <p>
+ * Each mailbox stores the indexes of its messages in a single file, one record per line (see {@link #toRecord(String)}
+ * and {@link #parseRecord(String)}).
+ */
+class MessageIndex {
+
+    /**
+     * Maximum number of body lines whose end position is recorded. Requests for more lines read the message file.
+     */
+    public static final int MAX_INDEXED_LINES = 100;
+
+    private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+    private static final String PROCESS_ID = Long.toString(ProcessHandle.current().pid(), 36);
+
+    private final String uniqueId;
+    private final long headerLength;
+    private final int bodyLines;
+    private final long[] lineEnds;
+
+    private MessageIndex(String uniqueId, long headerLength, int bodyLines, long[] lineEnds) {
+        this.uniqueId = uniqueId;
+        this.headerLength = headerLength;
+        this.bodyLines = bodyLines;
+        this.lineEnds = lineEnds;
+    }
+
+    /**
+     * Returns the unique ID of the message, which never changes and is not reused for another message in the mailbox.
+     *
+     * @return A string of printable ASCII characters, as required by the POP3 UIDL command.
+     */
+    String getUniqueId() {
+        return uniqueId;
+    }
+
+    /**
+     * Returns the number of bytes at the start of the message that contain the headers and a number of body lines.
+     *
+     * @param lines    The number of body lines.
+     * @param fileSize The size of the message.
+     * @return The number of bytes, or -1 if the body lines were not indexed.
+     */
+    long getTopLength(int lines, long fileSize) {
+        if (lines <= 0)
+            return headerLength;
+        if (lines >= bodyLines)
+            return fileSize;
+        if (lines <= lineEnds.length)
+            return lineEnds[lines - 1];
+        return -1;
+    }
+
+    /**
+     * Formats the index as a line of the mailbox's index file.
+     *
+     * @param fileName The name of the message file.
+     * @return The record, without line terminator.
+     */
+    String toRecord(String fileName) {
+        StringBuilder record = new StringBuilder(fileName).append(' ').append(uniqueId).append(' ')
+                .append(headerLength).append(' ').append(bodyLines).append(' ');
+        if (lineEnds.length == 0)
+            record.append('-');
+        for (int i = 0; i < lineEnds.length; i++) {
+            if (i > 0)
+                record.append(',');
+            record.append(lineEnds[i]);
+        }
+        return record.toString();
+    }
+
+    /**
+     * Parses a line of the mailbox's index file.
+     *
+     * @param record The record, as returned by {@link #toRecord(String)}.
+     * @return A pair with the name of the message file and its index, or null if the record is malformed.
+     */
+    static Record parseRecord(String record) {
+        String[] fields = record.split(" ");
+        if (fields.length != 5)
+            return null;
+        try {
+            long[] lineEnds = fields[4].equals("-") ? new long[0] :
+                    Arrays.stream(fields[4].split(",")).mapToLong(Long::parseLong).toArray();
+            return new Record(fields[0], new MessageIndex(fields[1], Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]), lineEnds));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a unique ID for a new message, from the current time, a sequence number and the process ID.
+     */
+    private static String newUniqueId() {
+        return Long.toString(System.currentTimeMillis(), 36) + "." +
+                Long.toString(ID_SEQUENCE.incrementAndGet(), 36) + "." + PROCESS_ID;
+    }
+
+    /**
+     * A message file name and its index, as stored in the index file.
+     */
+    static class Record {
+
+        final String fileName;
+        final MessageIndex index;
+
+        Record(String fileName, MessageIndex index) {
+            this.fileName = fileName;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Builds the index of a message while its content is being written.
+     */
+    static class Builder {
+
+        private long position = 0;
+        private long headerLength = -1;
+        private boolean emptyLine = true;
+        private int bodyLines = 0;
+        private long[] lineEnds = new long[16];
+
+        /**
+         * Processes the next bytes of the message content.
+         *
+         * @param b   Array of bytes
+         * @param off Offset of the first byte
+         * @param len Number of bytes
+         */
+        void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++)
+                update(b[i]);
+        }
+
+        /**
+         * Processes the next byte of the message content.
+         *
+         * @param b The byte.
+         */
+        void update(int b) {
+            position++;
+            if (b == '\n') {
+                if (headerLength < 0) {
+                    if (emptyLine)
+                        headerLength = position;
+                } else {
+                    addLineEnd();
+                }
+                emptyLine = true;
+            } else if (b != '\r') {
+                emptyLine = false;
+            }
+        }
+
+        private void addLineEnd() {
+            if (bodyLines < MAX_INDEXED_LINES) {
+                if (bodyLines == lineEnds.length)
+                    lineEnds = Arrays.copyOf(lineEnds, Math.min(lineEnds.length * 2, MAX_INDEXED_LINES));
+                lineEnds[bodyLines] = position;
+            }
+            bodyLines++;
+        }
+
+        /**
+         * Completes the index once all the content was processed.
+         *
+         * @return The index of the message, with a new unique ID.
+         */
+        MessageIndex build() {
+            if (headerLength < 0) {
+                // No body
+                headerLength = position;
+            } else if (!emptyLine) {
+                // Last body line without terminator
+                addLineEnd();
+            }
+            return new MessageIndex(newUniqueId(), headerLength, bodyLines,
+                    Arrays.copyOf(lineEnds, Math.min(bodyLines, MAX_INDEXED_LINES)));
+        }
+    }
+}
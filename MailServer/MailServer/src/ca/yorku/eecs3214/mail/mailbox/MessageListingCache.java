@@ -0,0 +1,213 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide cache of the list of messages (file names, sizes and indexes, in delivery order) in each user's mailbox, so that
+ * loading an unchanged mailbox does not require scanning its directory. Listings are updated incrementally by the
+ * deliveries and deletions performed by this process. Each listing also records the modification time of the mail
+ * directory, so a change made by another process (e.g., an SMTP server delivering to a mailbox used by a separate POP3
+ * server) is detected with a single check of the directory, and the listing is then discarded. The least recently used
+ * listings are evicted once the cache holds the maximum number of mailboxes.
+ * <p>
+ * Each mailbox also has a version number, incremented on every change, so that a listing obtained from a directory
+ * scan that ran concurrently with a delivery or deletion is not stored in the cache.
+ */
+class MessageListingCache {
+
+    private final int maxEntries;
+    private final Map<String, Listing> listings;
+    private final Map<String, Long> versions = new HashMap<>();
+
+    /**
+     * Creates a new, empty cache.
+     *
+     * @param maxEntries The maximum number of mailboxes whose listings are kept.
+     */
+    MessageListingCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.listings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+                return size() > MessageListingCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached listing of a mailbox, if the mail directory was not modified since it was obtained.
+     *
+     * @param user     The mailbox's user.
+     * @param modified The current modification time of the mail directory.
+     * @return An unmodifiable list of messages, or null if the listing is not cached or out of date.
+     */
+    synchronized List<Entry> get(String user, FileTime modified) {
+        Listing listing = listings.get(user);
+        if (listing == null)
+            return null;
+        if (!listing.modified.equals(modified)) {
+            listings.remove(user);
+            return null;
+        }
+        return listing.entries;
+    }
+
+    /**
+     * Returns the current version of a mailbox. Must be obtained before scanning the mailbox, and provided when the
+     * result of the scan is stored with {@link #put(String, List, long, FileTime)}.
+     *
+     * @param user The mailbox's user.
+     * @return The number of changes made to the mailbox by this process.
+     */
+    synchronized long version(String user) {
+        return versions.getOrDefault(user, 0L);
+    }
+
+    /**
+     * Stores the listing of a mailbox, unless the mailbox was changed by this process since the listing was obtained.
+     *
+     * @param user     The mailbox's user.
+     * @param entries  The list of messages, sorted in delivery order.
+     * @param version  The version of the mailbox obtained before the listing.
+     * @param modified The modification time of the mail directory obtained before the listing.
+     */
+    synchronized void put(String user, List<Entry> entries, long version, FileTime modified) {
+        if (maxEntries > 0 && version(user) == version)
+            listings.put(user, new Listing(Collections.unmodifiableList(entries), modified));
+    }
+
+    /**
+     * Records a message added to a mailbox. If the mailbox's listing is cached, and corresponds to the directory as it
+     * was right before the message was added, the message is inserted in the listing, replacing any entry with the
+     * same name. Otherwise, another process changed the directory in the meantime, and the listing is discarded.
+     *
+     * @param user   The mailbox's user.
+     * @param entry  The added message.
+     * @param before The modification time of the mail directory before the message was added.
+     * @param after  The modification time of the mail directory after the message was added.
+     */
+    synchronized void added(String user, Entry entry, FileTime before, FileTime after) {
+        versions.merge(user, 1L, Long::sum);
+        Listing listing = listings.get(user);
+        if (listing == null)
+            return;
+        if (!listing.modified.equals(before)) {
+            listings.remove(user);
+            return;
+        }
+        List<Entry> updated = new ArrayList<>(listing.entries.size() + 1);
+        for (Entry e : listing.entries) {
+            if (!e.name.equals(entry.name))
+                updated.add(e);
+        }
+        int position = Collections.binarySearch(updated, entry, Entry.ORDER);
+        updated.add(position < 0 ? -position - 1 : position, entry);
+        listings.put(user, new Listing(Collections.unmodifiableList(updated), after));
+    }
+
+    /**
+     * Records messages removed from a mailbox. If the mailbox's listing is cached, and corresponds to the directory as
+     * it was right before the messages were removed, the messages are removed from it. Otherwise, the listing is
+     * discarded.
+     *
+     * @param user   The mailbox's user.
+     * @param names  The file names of the removed messages.
+     * @param before The modification time of the mail directory before the messages were removed.
+     * @param after  The modification time of the mail directory after the messages were removed.
+     */
+    synchronized void removed(String user, Set<String> names, FileTime before, FileTime after) {
+        versions.merge(user, 1L, Long::sum);
+        Listing listing = listings.get(user);
+        if (listing == null)
+            return;
+        if (!listing.modified.equals(before)) {
+            listings.remove(user);
+            return;
+        }
+        List<Entry> updated = new ArrayList<>(listing.entries.size());
+        for (Entry e : listing.entries) {
+            if (!names.contains(e.name))
+                updated.add(e);
+        }
+        listings.put(user, new Listing(Collections.unmodifiableList(updated), after));
+    }
+
+    /**
+     * Records a change to the mail directory that does not affect the listing, e.g., the removal of files already
+     * removed from the listing. The cached listing remains valid only if it corresponds to the directory as it was
+     * right before the change.
+     *
+     * @param user   The mailbox's user.
+     * @param before The modification time of the mail directory before the change.
+     * @param after  The modification time of the mail directory after the change.
+     */
+    synchronized void touched(String user, FileTime before, FileTime after) {
+        versions.merge(user, 1L, Long::sum);
+        Listing listing = listings.get(user);
+        if (listing == null)
+            return;
+        if (listing.modified.equals(before))
+            listings.put(user, new Listing(listing.entries, after));
+        else
+            listings.remove(user);
+    }
+
+    /**
+     * Discards the cached listing of a mailbox, e.g., when a message is added without its final size being known.
+     *
+     * @param user The mailbox's user.
+     */
+    synchronized void invalidate(String user) {
+        versions.merge(user, 1L, Long::sum);
+        listings.remove(user);
+    }
+
+    /**
+     * The cached messages of a mailbox, and the modification time of the mail directory they correspond to.
+     */
+    private static class Listing {
+
+        final List<Entry> entries;
+        final FileTime modified;
+
+        Listing(List<Entry> entries, FileTime modified) {
+            this.entries = entries;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * A message in a mailbox listing.
+     */
+    static class Entry {
+
+        /**
+         * Orders messages by the number in their file name, i.e., in delivery order. Files with other names come
+         * last, sorted by name.
+         */
+        static final Comparator<Entry> ORDER = Comparator
+                .comparingLong((Entry e) -> {
+                    long index = DirectoryStorage.getMessageIndex(e.name);
+                    return index < 0 ? Long.MAX_VALUE : index;
+                })
+                .thenComparing(e -> e.name);
+
+        final String name;
+        final long size;
+        final MessageIndex index;
+
+        Entry(String name, long size, MessageIndex index) {
+            this.name = name;
+            this.size = size;
+            this.index = index;
+        }
+    }
+}
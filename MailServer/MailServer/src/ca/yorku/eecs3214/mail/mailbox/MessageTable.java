@@ -0,0 +1,104 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The messages loaded from a mailbox by a session, with their sizes kept in a primitive array and their deletion tags
+ * in a bit set. The number and total size of the messages not tagged for deletion are kept up to date as messages are
+ * tagged and untagged, so they are obtained in constant time. Not thread-safe: a table is used by a single session.
+ */
+class MessageTable implements Iterable<MailMessage> {
+
+    private final MailMessage[] messages;
+    private final long[] sizes;
+    private final BitSet deleted;
+    private final long totalSize;
+    private int undeletedCount;
+    private long undeletedSize;
+
+    /**
+     * Creates a table of messages, none of them tagged for deletion. Each message is attached to the table, so its
+     * deletion tag is kept here from now on.
+     *
+     * @param messages The messages, in delivery order.
+     */
+    MessageTable(List<MailMessage> messages) {
+        this.messages = messages.toArray(new MailMessage[0]);
+        this.sizes = new long[this.messages.length];
+        this.deleted = new BitSet(this.messages.length);
+        long total = 0;
+        for (int i = 0; i < this.messages.length; i++) {
+            sizes[i] = this.messages[i].getFileSize();
+            total += sizes[i];
+            this.messages[i].attach(this, i);
+        }
+        this.totalSize = total;
+        this.undeletedCount = this.messages.length;
+        this.undeletedSize = total;
+    }
+
+    MailMessage get(int position) {
+        return messages[position];
+    }
+
+    long getSize(int position) {
+        return sizes[position];
+    }
+
+    int count(boolean includeDeleted) {
+        return includeDeleted ? messages.length : undeletedCount;
+    }
+
+    long totalSize(boolean includeDeleted) {
+        return includeDeleted ? totalSize : undeletedSize;
+    }
+
+    boolean isDeleted(int position) {
+        return deleted.get(position);
+    }
+
+    /**
+     * Tags or untags a message for deletion, updating the counters of undeleted messages.
+     *
+     * @param position    The 0-based position of the message.
+     * @param markDeleted true to tag the message for deletion, or false to remove the tag.
+     */
+    void setDeleted(int position, boolean markDeleted) {
+        if (deleted.get(position) == markDeleted)
+            return;
+        deleted.set(position, markDeleted);
+        int sign = markDeleted ? -1 : 1;
+        undeletedCount += sign;
+        undeletedSize += sign * sizes[position];
+    }
+
+    /**
+     * Removes the deletion tag of all messages.
+     */
+    void undeleteAll() {
+        deleted.clear();
+        undeletedCount = messages.length;
+        undeletedSize = totalSize;
+    }
+
+    /**
+     * Returns the messages currently tagged for deletion.
+     *
+     * @return A new list of messages, in delivery order.
+     */
+    List<MailMessage> getDeleted() {
+        List<MailMessage> result = new ArrayList<>(messages.length - undeletedCount);
+        for (int i = deleted.nextSetBit(0); i >= 0; i = deleted.nextSetBit(i + 1))
+            result.add(messages[i]);
+        return result;
+    }
+
+    @Override
+    public Iterator<MailMessage> iterator() {
+        return Arrays.asList(messages).iterator();
+    }
+}
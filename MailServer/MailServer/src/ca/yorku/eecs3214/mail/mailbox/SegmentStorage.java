@@ -0,0 +1,614 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Log-structured storage backend, which appends the messages of a mailbox to a small number of large segment files
+ * (<code>N.seg</code>) in the user's mail directory, instead of creating a file per message. The location and index of
+ * each message are recorded in an append-only log (<code>segments.log</code>), with one line per event:
+ * <pre>
+ *     # generation floor          header, written when the log is created or rewritten
+ *     + segment:offset:length ... a message was added, followed by its index (see MessageIndex)
+ *     - segment:offset:length     a message was deleted (tombstone)
+ * </pre>
+ * Each process keeps the state of the log in memory, and only reads the lines appended since it last read it, so
+ * listing a mailbox does not require a directory scan or a system call per message. Changes are serialized across
+ * processes by an exclusive lock on a separate lock file; reading the log requires no lock, as incomplete lines are
+ * ignored until they are complete.
+ * <p>
+ * Deleted messages are only tombstoned. Their space is reclaimed by a background compactor, which copies the messages
+ * still in use out of segments that are mostly deleted, rewrites the log under a new generation, and removes the old
+ * segments. Mailboxes are not compacted while messages loaded from them by this process are in use.
+ */
+class SegmentStorage implements MailStorage {
+
+    /**
+     * Size from which a new segment is started, configurable with the <code>mail.segment.size</code> system property.
+     */
+    public static final long SEGMENT_SIZE = Long.getLong("mail.segment.size", 16L * 1024 * 1024);
+
+    /**
+     * Percentage of the content of a segment that must be deleted for the segment to be compacted, configurable with
+     * the <code>mail.segment.compactionThreshold</code> system property.
+     */
+    public static final int COMPACTION_THRESHOLD = Integer.getInteger("mail.segment.compactionThreshold", 50);
+
+    public static final String SEGMENT_FILE_SUFFIX = ".seg";
+    public static final String LOG_FILE_NAME = "segments.log";
+    public static final String LOCK_FILE_NAME = "segments.lock";
+
+    private static final Map<String, State> STATES = new ConcurrentHashMap<>();
+    private static final BlockingQueue<State> COMPACTION_QUEUE = new LinkedBlockingQueue<>();
+
+    static {
+        Thread compactor = new Thread(SegmentStorage::runCompactor, "segment-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    private final State state;
+    private boolean loaded = false;
+
+    /**
+     * Creates the storage of a user's mailbox.
+     *
+     * @param user The mailbox's user.
+     */
+    SegmentStorage(String user) {
+        this.state = STATES.computeIfAbsent(user, State::new);
+    }
+
+    @Override
+    public List<MailMessage> loadMessages() {
+        List<MailMessage> messages = new ArrayList<>();
+        synchronized (state) {
+            state.refresh();
+            if (!loaded) {
+                loaded = true;
+                state.readers++;
+            }
+            for (Location location : state.live.values())
+                messages.add(new MailMessage(state.getSegmentFile(location.segment), location.offset, location.length,
+                        location.index));
+        }
+        return messages;
+    }
+
+    @Override
+    public void release() {
+        synchronized (state) {
+            if (!loaded)
+                return;
+            loaded = false;
+            if (--state.readers == 0 && state.compactionPending)
+                COMPACTION_QUEUE.add(state);
+        }
+    }
+
+    @Override
+    public long getUsage() {
+        synchronized (state) {
+            state.refresh();
+            return state.usage;
+        }
+    }
+
+    /**
+     * Creates a message whose content is written to a spool file, and appended to a segment once it is complete, so
+     * that concurrent deliveries to the same mailbox do not need to wait for each other.
+     */
+    @Override
+    public PendingMessage createMessage() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        MailWriter.SPOOL_DIRECTORY.mkdirs();
+        Path spool = Files.createTempFile(MailWriter.SPOOL_DIRECTORY.toPath(), "", SEGMENT_FILE_SUFFIX);
+        OutputStream out;
+        try {
+            out = new FileOutputStream(spool.toFile());
+        } catch (IOException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+        return new PendingMessage() {
+            @Override
+            public OutputStream getOutputStream() {
+                return out;
+            }
+
+            @Override
+            public void commit(long size, MessageIndex index, Collection<Path> changed) throws IOException {
+                try {
+                    addMessage(spool, size, index, changed);
+                } finally {
+                    Files.deleteIfExists(spool);
+                }
+            }
+
+            @Override
+            public void discard() {
+                try {
+                    out.close();
+                    Files.deleteIfExists(spool);
+                } catch (IOException e) {
+                    // Ignored, the content is being discarded anyway
+                }
+            }
+        };
+    }
+
+    /**
+     * Appends the content of a file to the mailbox's active segment, and then records the new message in the log. A
+     * failure between the two steps leaves unused bytes in the segment, which are reclaimed by compaction.
+     */
+    @Override
+    @SuppressWarnings("try")
+    public void addMessage(Path content, long size, MessageIndex index, Collection<Path> changed)
+            throws IOException {
+        synchronized (state) {
+            try (FileChannel lockChannel = state.openLockFile();
+                 FileLock ignored = lockChannel.lock()) {
+                state.refresh();
+                long segment = state.getActiveSegment();
+                FileChannel out = FileChannel.open(state.getSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                try {
+                    if (out.size() >= SEGMENT_SIZE) {
+                        out.close();
+                        segment++;
+                        out = FileChannel.open(state.getSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE);
+                    }
+                    long offset = out.size();
+                    try (FileChannel in = FileChannel.open(content, StandardOpenOption.READ)) {
+                        copy(in, 0, out, offset, size);
+                    }
+                    state.appendLog("+ " + index.toRecord(new Location(segment, offset, size, index).getKey()));
+                    changed.add(state.getSegmentFile(segment).toPath());
+                    changed.add(state.logFile);
+                    changed.add(state.directory.toPath());
+                } finally {
+                    out.close();
+                }
+                state.refresh();
+            }
+        }
+    }
+
+    /**
+     * Records a tombstone for each message in the log. The content is only removed once the mailbox is compacted.
+     */
+    @Override
+    @SuppressWarnings("try")
+    public void deleteMessages(Collection<MailMessage> messages) {
+        synchronized (state) {
+            try (FileChannel lockChannel = state.openLockFile();
+                 FileLock ignored = lockChannel.lock()) {
+                state.refresh();
+                StringBuilder tombstones = new StringBuilder();
+                for (MailMessage message : messages) {
+                    String key = new Location(getSegmentNumber(message.getFile()), message.getContentOffset(),
+                            message.getFileSize(), null).getKey();
+                    if (state.live.containsKey(key))
+                        tombstones.append(tombstones.length() > 0 ? "\n- " : "- ").append(key);
+                }
+                if (tombstones.length() > 0)
+                    state.appendLog(tombstones.toString());
+                state.refresh();
+            } catch (IOException e) {
+                System.err.println("Error deleting messages of " + state.user + ": " + e.getMessage());
+                return;
+            }
+            if (!state.compactionPending && !state.findCompactableSegments().isEmpty()) {
+                state.compactionPending = true;
+                if (state.readers == 0)
+                    COMPACTION_QUEUE.add(state);
+            }
+        }
+    }
+
+    /**
+     * Copies a region of a file to a position in another file, letting the operating system transfer the content
+     * directly where possible.
+     *
+     * @throws IOException If the source file ends before the end of the region, or in case of an error copying it.
+     */
+    private static void copy(FileChannel in, long inPosition, FileChannel out, long outPosition, long length)
+            throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long transferred = out.transferFrom(in.position(inPosition + copied), outPosition + copied,
+                    length - copied);
+            if (transferred <= 0)
+                throw new IOException("Unexpected end of message content");
+            copied += transferred;
+        }
+    }
+
+    /**
+     * Returns the number of a segment from the name of its file.
+     */
+    private static long getSegmentNumber(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+
+    /**
+     * Compacts the mailboxes queued by deletions, one at a time. Runs on a daemon thread for the life of the process.
+     */
+    private static void runCompactor() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            State state;
+            try {
+                state = COMPACTION_QUEUE.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            synchronized (state) {
+                if (!state.compactionPending || state.readers > 0)
+                    continue;
+                state.compactionPending = false;
+                try {
+                    state.compact();
+                } catch (IOException e) {
+                    System.err.println("Error compacting the mailbox of " + state.user + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The location of a message in a segment, and its index.
+     */
+    private static class Location {
+
+        final long segment;
+        final long offset;
+        final long length;
+        final MessageIndex index;
+
+        Location(long segment, long offset, long length, MessageIndex index) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.index = index;
+        }
+
+        /**
+         * Returns the key identifying the message in the log.
+         */
+        String getKey() {
+            return segment + ":" + offset + ":" + length;
+        }
+
+        /**
+         * Parses a key identifying a message in the log.
+         *
+         * @return The location, or null if the key is malformed.
+         */
+        static Location parse(String key, MessageIndex index) {
+            String[] fields = key.split(":");
+            if (fields.length != 3)
+                return null;
+            try {
+                return new Location(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        index);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * In-memory state of a mailbox's log, shared by all SegmentStorage objects of the user in this process. All
+     * access must be synchronized on the state object.
+     */
+    private static class State {
+
+        final String user;
+        final File directory;
+        final Path logFile;
+        final Path lockFile;
+
+        String generation = null;
+        long floor = 0;
+        long logPosition = 0;
+        final Map<String, Location> live = new LinkedHashMap<>();
+        /**
+         * For each segment referenced by the log, the number of bytes added to it and the number of those deleted.
+         */
+        final TreeMap<Long, long[]> segments = new TreeMap<>();
+        long usage = 0;
+
+        int readers = 0;
+        boolean compactionPending = false;
+
+        State(String user) {
+            this.user = user;
+            this.directory = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, user);
+            this.logFile = new File(directory, LOG_FILE_NAME).toPath();
+            this.lockFile = new File(directory, LOCK_FILE_NAME).toPath();
+        }
+
+        File getSegmentFile(long segment) {
+            return new File(directory, segment + SEGMENT_FILE_SUFFIX);
+        }
+
+        /**
+         * Returns the segment to which new messages are appended: the highest-numbered segment in use, but never one
+         * that was removed by compaction.
+         */
+        long getActiveSegment() {
+            return segments.isEmpty() ? floor : Math.max(floor, segments.lastKey());
+        }
+
+        /**
+         * Opens the file locked by processes changing the mailbox, creating the mail directory if needed.
+         */
+        FileChannel openLockFile() throws IOException {
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+            return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Reads the lines appended to the log since it was last read. If the log was rewritten by a compaction (in any
+         * process), the state is rebuilt from the start of the new log.
+         */
+        void refresh() {
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+                String header = readHeader(channel);
+                if (header == null || !header.equals(generation)) {
+                    reset();
+                    generation = header;
+                }
+                long size = channel.size();
+                if (size <= logPosition)
+                    return;
+                ByteBuffer buffer = ByteBuffer.allocate((int) (size - logPosition));
+                while (buffer.hasRemaining() && channel.read(buffer, logPosition + buffer.position()) > 0) {
+                    // Read until the end of the log
+                }
+                int start = 0;
+                byte[] bytes = buffer.array();
+                for (int i = 0; i < buffer.position(); i++) {
+                    if (bytes[i] != '\n')
+                        continue;
+                    apply(new String(bytes, start, i - start, StandardCharsets.US_ASCII));
+                    start = i + 1;
+                }
+                // An incomplete last line is read again once complete
+                logPosition += start;
+            } catch (NoSuchFileException e) {
+                // Nothing was delivered yet
+                reset();
+            } catch (IOException e) {
+                System.err.println("Error reading the segment log of " + user + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Reads the generation from the header line of the log.
+         *
+         * @return The generation, or null if the log has no complete header.
+         */
+        private static String readHeader(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(128);
+            channel.read(buffer, 0);
+            String start = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+            int end = start.indexOf('\n');
+            if (!start.startsWith("# ") || end < 0)
+                return null;
+            String[] fields = start.substring(2, end).split(" ");
+            return fields[0];
+        }
+
+        private void reset() {
+            generation = null;
+            floor = 0;
+            logPosition = 0;
+            live.clear();
+            segments.clear();
+            usage = 0;
+        }
+
+        /**
+         * Applies a line of the log to the state.
+         */
+        private void apply(String line) {
+            if (line.startsWith("# ")) {
+                String[] fields = line.substring(2).split(" ");
+                if (fields.length == 2)
+                    floor = Long.parseLong(fields[1]);
+            } else if (line.startsWith("+ ")) {
+                MessageIndex.Record record = MessageIndex.parseRecord(line.substring(2));
+                Location location = record == null ? null : Location.parse(record.fileName, record.index);
+                if (location == null)
+                    return;
+                live.put(record.fileName, location);
+                segments.computeIfAbsent(location.segment, s -> new long[2])[0] += location.length;
+                usage += location.length;
+            } else if (line.startsWith("- ")) {
+                Location location = live.remove(line.substring(2));
+                if (location == null)
+                    return;
+                segments.get(location.segment)[1] += location.length;
+                usage -= location.length;
+            }
+        }
+
+        /**
+         * Appends lines to the log, creating it with a new header if it does not exist. Must be called while holding
+         * the lock file.
+         */
+        void appendLog(String lines) throws IOException {
+            if (generation == null && !Files.exists(logFile))
+                replaceLog(new ArrayList<>(), 0);
+            ByteBuffer buffer = StandardCharsets.US_ASCII.encode(lines + "\n");
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        }
+
+        /**
+         * Replaces the log with a complete log under a new generation, which is written to a temporary file and then
+         * atomically renamed, so readers see either the old or the new log. Must be called while holding the lock
+         * file.
+         *
+         * @param locations The messages in the mailbox, in delivery order.
+         * @param floor     The lowest segment to which new messages may be appended.
+         */
+        private void replaceLog(List<Location> locations, long floor) throws IOException {
+            StringBuilder content = new StringBuilder("# ").append(UUID.randomUUID()).append(' ').append(floor)
+                    .append('\n');
+            for (Location location : locations)
+                content.append("+ ").append(location.index.toRecord(location.getKey())).append('\n');
+            ByteBuffer buffer = StandardCharsets.US_ASCII.encode(content.toString());
+            Path temporary = logFile.resolveSibling(LOG_FILE_NAME + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(true);
+            }
+            Files.move(temporary, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Returns the segments in which the deleted content exceeds the compaction threshold. The active segment is
+         * only included once all its messages are deleted, as new messages are still appended to it.
+         */
+        List<Long> findCompactableSegments() {
+            List<Long> compactable = new ArrayList<>();
+            long active = getActiveSegment();
+            for (Map.Entry<Long, long[]> entry : segments.entrySet()) {
+                long added = entry.getValue()[0];
+                long deleted = entry.getValue()[1];
+                if (deleted == added || (entry.getKey() != active && deleted * 100 >= added * COMPACTION_THRESHOLD))
+                    compactable.add(entry.getKey());
+            }
+            return compactable;
+        }
+
+        /**
+         * Copies the messages still in use out of the compactable segments into new segments, replaces the log with
+         * one listing only the messages in use, and deletes the old segments. The new log only becomes visible, by an
+         * atomic rename, once the copied content was forced to disk, so a failure at any point leaves either the old
+         * or the new state intact (plus, at worst, unused segment files).
+         */
+        @SuppressWarnings("try")
+        void compact() throws IOException {
+            try (FileChannel lockChannel = openLockFile();
+                 FileLock ignored = lockChannel.lock()) {
+                refresh();
+                List<Long> compactable = findCompactableSegments();
+                if (compactable.isEmpty())
+                    return;
+                long target = Math.max(getActiveSegment(), highestSegmentFile()) + 1;
+                List<Location> locations = new ArrayList<>(live.size());
+                FileChannel out = null;
+                try {
+                    for (Location location : live.values()) {
+                        if (!compactable.contains(location.segment)) {
+                            locations.add(location);
+                            continue;
+                        }
+                        if (out == null || out.size() >= SEGMENT_SIZE) {
+                            if (out != null) {
+                                out.force(false);
+                                out.close();
+                                target++;
+                            }
+                            out = FileChannel.open(getSegmentFile(target).toPath(), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        }
+                        long offset = out.size();
+                        try (FileChannel in = FileChannel.open(getSegmentFile(location.segment).toPath(),
+                                StandardOpenOption.READ)) {
+                            copy(in, location.offset, out, offset, location.length);
+                        }
+                        locations.add(new Location(target, offset, location.length, location.index));
+                    }
+                    if (out != null)
+                        out.force(false);
+                } finally {
+                    if (out != null)
+                        out.close();
+                }
+
+                replaceLog(locations, target);
+                for (long segment : compactable)
+                    Files.deleteIfExists(getSegmentFile(segment).toPath());
+                refresh();
+                deleteUnusedSegments();
+            }
+        }
+
+        /**
+         * Returns the highest number of the segment files in the mail directory, including files not referenced by
+         * the log.
+         */
+        private long highestSegmentFile() {
+            long highest = -1;
+            String[] names = directory.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                        try {
+                            highest = Math.max(highest, getSegmentNumber(new File(name)));
+                        } catch (NumberFormatException e) {
+                            // Not a segment
+                        }
+                    }
+                }
+            }
+            return highest;
+        }
+
+        /**
+         * Deletes segment files no longer referenced by the log, e.g., left by an interrupted compaction. Must be
+         * called while holding the lock file.
+         */
+        private void deleteUnusedSegments() throws IOException {
+            long active = getActiveSegment();
+            String[] names = directory.list();
+            if (names == null)
+                return;
+            for (String name : names) {
+                if (!name.endsWith(SEGMENT_FILE_SUFFIX))
+                    continue;
+                try {
+                    long segment = getSegmentNumber(new File(name));
+                    if (segment < active && !segments.containsKey(segment))
+                        Files.deleteIfExists(new File(directory, name).toPath());
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+    }
+}
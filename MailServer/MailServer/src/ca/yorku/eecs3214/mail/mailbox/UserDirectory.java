@@ -0,0 +1,95 @@
+package ca.yorku.eecs3214.mail.mailbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Directory of user addresses and passwords, read from the users database (see {@link Mailbox#USER_FILE_NAME}). The
+ * directory is an immutable snapshot published through a volatile field, so lookups never lock. A background thread
+ * polls the database and publishes a new snapshot when it changes, so users can be added or removed without restarting
+ * the servers.
+ */
+class UserDirectory {
+
+    /**
+     * Number of milliseconds between checks for changes in the users database, configurable with the
+     * <code>mail.users.reloadInterval</code> system property. A value of 0 disables reloading.
+     */
+    public static final long RELOAD_INTERVAL = Long.getLong("mail.users.reloadInterval", 1000);
+
+    private static final File USER_FILE = new File(Mailbox.USER_FILE_NAME);
+
+    private static volatile Map<String, String> users = Map.of();
+    private static long lastModified = -1;
+    private static long lastLength = -1;
+
+    static {
+        reloadIfChanged();
+        if (RELOAD_INTERVAL > 0) {
+            Thread reloader = new Thread(UserDirectory::run, "user-directory");
+            reloader.setDaemon(true);
+            reloader.start();
+        }
+    }
+
+    private UserDirectory() {
+    }
+
+    /**
+     * Returns the current snapshot of the users database.
+     *
+     * @return An unmodifiable map from a user's address to the user's password.
+     */
+    static Map<String, String> getUsers() {
+        return users;
+    }
+
+    /**
+     * Repeatedly waits for the reload interval and reloads the database if it changed.
+     */
+    private static void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                Thread.sleep(RELOAD_INTERVAL);
+            } catch (InterruptedException e) {
+                // Check now
+            }
+            reloadIfChanged();
+        }
+    }
+
+    /**
+     * Reads the users database again if its modification time or length changed since it was last read. Only called
+     * from the static initializer and the reloading thread, which is started after it.
+     */
+    private static void reloadIfChanged() {
+        long modified = USER_FILE.lastModified();
+        long length = USER_FILE.length();
+        if (modified == lastModified && length == lastLength)
+            return;
+        Map<String, String> loaded = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] split = line.split(" ", 2);
+                if (split.length == 2)
+                    loaded.put(split[0], split[1]);
+            }
+        } catch (FileNotFoundException e) {
+            // Do nothing, there are no users
+        } catch (IOException e) {
+            // Keep the previous users, and try again on the next check
+            System.err.println("Error reading " + USER_FILE + ": " + e);
+            return;
+        }
+        lastModified = modified;
+        lastLength = length;
+        users = Map.copyOf(loaded);
+    }
+}
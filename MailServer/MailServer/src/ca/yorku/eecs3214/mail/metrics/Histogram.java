@@ -0,0 +1,117 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of recorded values, such as latencies or sizes, that can be updated concurrently without locking.
+ * Values are counted in buckets of powers of two, each a striped counter, so recording a value is a few non-contended
+ * additions. Percentiles are therefore approximate: they are reported as the upper bound of the bucket where they fall,
+ * capped by the maximum recorded value.
+ */
+public class Histogram implements HistogramMXBean {
+
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final String unit;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param unit The unit of the recorded values, as shown in reports (e.g., <code>us</code>).
+     */
+    public Histogram(String unit) {
+        this.unit = unit;
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value to be recorded.
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        // Bucket i holds the values whose highest bit is bit i - 1, i.e., values from 2^(i-1) to 2^i - 1
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    @Override
+    public String getUnit() {
+        return unit;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public long getP90() {
+        return getPercentile(0.9);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    /**
+     * Returns an approximation of a percentile of the recorded values.
+     *
+     * @param fraction The fraction of values at or below the percentile, between 0 and 1.
+     * @return The upper bound of the bucket containing the percentile, or 0 if no value was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                long upper = i == 0 ? 0 : i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f%s p50=%d%s p90=%d%s p99=%d%s max=%d%s", getCount(), getMean(), unit,
+                getP50(), unit, getP90(), unit, getP99(), unit, getMax(), unit);
+    }
+}
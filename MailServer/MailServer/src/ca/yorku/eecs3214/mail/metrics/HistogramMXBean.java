@@ -0,0 +1,22 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+/**
+ * Management interface of a {@link Histogram}, as exposed through JMX. Values are in the histogram's unit, and
+ * percentiles are approximate (see {@link Histogram}).
+ */
+public interface HistogramMXBean {
+
+    String getUnit();
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+}
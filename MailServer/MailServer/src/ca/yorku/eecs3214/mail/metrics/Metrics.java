@@ -0,0 +1,114 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Process-wide metrics of the mail servers. Every metric object is registered as a JMX MBean under the
+ * <code>ca.yorku.eecs3214.mail</code> domain, and the registered metrics can also be printed periodically as text
+ * (see {@link #DUMP_INTERVAL}).
+ */
+public class Metrics {
+
+    public static final String JMX_DOMAIN = "ca.yorku.eecs3214.mail";
+
+    /**
+     * Number of seconds between text dumps of the metrics to the standard output, configurable with the
+     * <code>mail.metrics.dumpInterval</code> system property. The default of 0 disables the dumps.
+     */
+    public static final long DUMP_INTERVAL = Long.getLong("mail.metrics.dumpInterval", 0);
+
+    /**
+     * Name under which the processing of a message's content, once its final line is received, is recorded as an SMTP
+     * command.
+     */
+    public static final String SMTP_END_OF_DATA = "DATA-END";
+
+    private static final Map<String, Object> REGISTERED = new ConcurrentSkipListMap<>();
+
+    public static final ProtocolMetrics SMTP = new ProtocolMetrics("SMTP", "HELO", "EHLO", "MAIL", "RCPT", "DATA",
+            "BDAT", "RSET", "VRFY", "NOOP", "QUIT", "STARTTLS", SMTP_END_OF_DATA);
+    public static final ProtocolMetrics POP3 = new ProtocolMetrics("POP3", "USER", "PASS", "STAT", "LIST", "RETR",
+            "DELE", "RSET", "NOOP", "TOP", "UIDL", "CAPA", "STLS", "QUIT");
+
+    /**
+     * Handshakes of connections upgraded to TLS with STARTTLS or STLS, by both servers.
+     */
+    public static final TlsMetrics TLS = new TlsMetrics();
+
+    /**
+     * Number of recipient mailboxes of each message delivered.
+     */
+    public static final Histogram FAN_OUT = register("Delivery", "fanOut", new Histogram(""));
+
+    /**
+     * Time taken to load the list of messages of a mailbox, in microseconds.
+     */
+    public static final Histogram MAILBOX_LOAD = register("Mailbox", "loadTime", new Histogram("us"));
+
+    static {
+        if (DUMP_INTERVAL > 0) {
+            Thread dumper = new Thread(Metrics::runDumper, "metrics-dump");
+            dumper.setDaemon(true);
+            dumper.start();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a metric object as a JMX MBean and includes it in the text dumps, which use its
+     * <code>toString()</code> method. Errors registering the MBean are reported but otherwise ignored, so metrics never
+     * prevent a server from running.
+     *
+     * @param type   The type of the metric, used in the MBean's name.
+     * @param name   The name of the metric, unique within its type.
+     * @param metric The metric object, which must implement an MXBean interface.
+     * @return The metric object.
+     */
+    public static <T> T register(String type, String name, T metric) {
+        REGISTERED.put(type + " " + name, metric);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metric,
+                    new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + name));
+        } catch (JMException | RuntimeException e) {
+            System.err.println("Error registering the " + name + " metrics: " + e);
+        }
+        return metric;
+    }
+
+    /**
+     * Formats all registered metrics as text, one per line. Histograms with no recorded values are omitted.
+     *
+     * @return The text of the metrics.
+     */
+    public static String dump() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Object> entry : REGISTERED.entrySet()) {
+            Object metric = entry.getValue();
+            if (metric instanceof Histogram && ((Histogram) metric).getCount() == 0)
+                continue;
+            text.append(entry.getKey()).append(' ').append(metric).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Repeatedly prints the metrics to the standard output.
+     */
+    private static void runDumper() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                Thread.sleep(DUMP_INTERVAL * 1000);
+            } catch (InterruptedException e) {
+                // Dump now
+            }
+            System.out.print(dump());
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the sessions of one protocol server: session gauges, bytes transferred, rejected connections, timed out
+ * sessions, and a latency histogram per command verb. The verbs are fixed when the object is created, so recording a command never creates objects or
+ * locks; commands that are not recognized are counted together.
+ */
+public class ProtocolMetrics implements ProtocolMetricsMXBean {
+
+    /**
+     * Name under which commands that are not in the list of verbs are recorded.
+     */
+    public static final String UNKNOWN_VERB = "UNKNOWN";
+
+    private final String protocol;
+    private final Map<String, Histogram> commands;
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder totalSessions = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder rejectedPerAddress = new LongAdder();
+    private final LongAdder rejectedAtCapacity = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder commandTimeouts = new LongAdder();
+    private final LongAdder sessionTimeouts = new LongAdder();
+
+    /**
+     * Creates the metrics of a protocol, and registers them (see {@link Metrics#register(String, String, Object)}).
+     *
+     * @param protocol The name of the protocol, such as <code>SMTP</code>.
+     * @param verbs    The command verbs whose latency is recorded individually, in upper case.
+     */
+    ProtocolMetrics(String protocol, String... verbs) {
+        this.protocol = protocol;
+        Map<String, Histogram> commands = new HashMap<>();
+        for (String verb : verbs)
+            commands.put(verb, new Histogram("us"));
+        commands.put(UNKNOWN_VERB, new Histogram("us"));
+        this.commands = Map.copyOf(commands);
+        Metrics.register("Protocol", protocol, this);
+        for (Map.Entry<String, Histogram> command : this.commands.entrySet())
+            Metrics.register("Command", protocol + "." + command.getKey(), command.getValue());
+    }
+
+    /**
+     * Records the time taken to process a command.
+     *
+     * @param verb  The command verb, in any case.
+     * @param nanos The processing time, in nanoseconds.
+     */
+    public void recordCommand(String verb, long nanos) {
+        Histogram histogram = commands.get(verb);
+        if (histogram == null)
+            histogram = commands.getOrDefault(verb.toUpperCase(), commands.get(UNKNOWN_VERB));
+        histogram.record(nanos / 1000);
+    }
+
+    public void sessionOpened() {
+        activeSessions.increment();
+        totalSessions.increment();
+    }
+
+    public void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    public void connectionRejectedPerAddress() {
+        rejectedPerAddress.increment();
+    }
+
+    public void connectionRejectedAtCapacity() {
+        rejectedAtCapacity.increment();
+    }
+
+    public void idleTimedOut() {
+        idleTimeouts.increment();
+    }
+
+    public void commandTimedOut() {
+        commandTimeouts.increment();
+    }
+
+    public void sessionTimedOut() {
+        sessionTimeouts.increment();
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Wraps a socket's input stream so that the bytes read from it are counted.
+     *
+     * @param in The input stream.
+     * @return A stream that reads from the given stream.
+     */
+    public InputStream countInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0)
+                    bytesIn.add(read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wraps a socket's output stream so that the bytes written to it are counted.
+     *
+     * @param out The output stream.
+     * @return A stream that writes to the given stream.
+     */
+    public OutputStream countOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getTotalSessions() {
+        return totalSessions.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getRejectedPerAddress() {
+        return rejectedPerAddress.sum();
+    }
+
+    @Override
+    public long getRejectedAtCapacity() {
+        return rejectedAtCapacity.sum();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    @Override
+    public long getCommandTimeouts() {
+        return commandTimeouts.sum();
+    }
+
+    @Override
+    public long getSessionTimeouts() {
+        return sessionTimeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sessions active=%d total=%d bytes in=%d out=%d rejected perAddress=%d atCapacity=%d " +
+                        "timeouts idle=%d command=%d session=%d", getActiveSessions(), getTotalSessions(),
+                getBytesIn(), getBytesOut(), getRejectedPerAddress(), getRejectedAtCapacity(), getIdleTimeouts(),
+                getCommandTimeouts(), getSessionTimeouts());
+    }
+}
@@ -0,0 +1,25 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+/**
+ * Management interface of the {@link ProtocolMetrics} of a server, as exposed through JMX.
+ */
+public interface ProtocolMetricsMXBean {
+
+    long getActiveSessions();
+
+    long getTotalSessions();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getRejectedPerAddress();
+
+    long getRejectedAtCapacity();
+
+    long getIdleTimeouts();
+
+    long getCommandTimeouts();
+
+    long getSessionTimeouts();
+}
@@ -0,0 +1,67 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the TLS handshakes of both servers: the number of full and resumed handshakes, from which the hit rate of
+ * session resumption is derived, the number of failed handshakes, and the time taken by each successful handshake.
+ */
+public class TlsMetrics implements TlsMetricsMXBean {
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final Histogram handshakeTime = Metrics.register("Tls", "handshakeTime", new Histogram("us"));
+
+    TlsMetrics() {
+        Metrics.register("Tls", "handshakes", this);
+    }
+
+    /**
+     * Records a successful handshake.
+     *
+     * @param resumed Whether a previous session was resumed, rather than a new one negotiated.
+     * @param nanos   The time taken by the handshake, in nanoseconds.
+     */
+    public void handshakeCompleted(boolean resumed, long nanos) {
+        (resumed ? resumedHandshakes : fullHandshakes).increment();
+        handshakeTime.record(nanos / 1000);
+    }
+
+    public void handshakeFailed() {
+        failedHandshakes.increment();
+    }
+
+    @Override
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    @Override
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * Returns the fraction of successful handshakes that resumed a previous session.
+     *
+     * @return The fraction, between 0 and 1, or 0 if there was no handshake.
+     */
+    @Override
+    public double getResumptionRate() {
+        long resumed = getResumedHandshakes();
+        long total = resumed + getFullHandshakes();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("full=%d resumed=%d failed=%d resumptionRate=%.3f", getFullHandshakes(),
+                getResumedHandshakes(), getFailedHandshakes(), getResumptionRate());
+    }
+}
@@ -0,0 +1,15 @@
+package ca.yorku.eecs3214.mail.metrics;
+
+/**
+ * Management interface of the {@link TlsMetrics} of the servers, as exposed through JMX.
+ */
+public interface TlsMetricsMXBean {
+
+    long getFullHandshakes();
+
+    long getResumedHandshakes();
+
+    long getFailedHandshakes();
+
+    double getResumptionRate();
+}
@@ -0,0 +1,136 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Connection to a client served by a blocking handler thread (see {@link MySMTPServer} and {@link MyPOPServer}).
+ */
+class BlockingConnection implements ClientConnection {
+
+    /**
+     * Maximum number of bytes of a file sent by a single transfer, each of which must complete within the write
+     * deadline (see {@link WriteWatchdog}).
+     */
+    private static final long TRANSFER_SIZE = 1 << 20;
+
+    private final Socket plainSocket;
+    private final ClientDeadline deadline;
+    private final WriteWatchdog watchdog;
+    private Socket socket;
+    private final LineReader socketIn;
+    private final ReplyWriter socketOut;
+    private final ProtocolMetrics metrics;
+
+    /**
+     * Creates the connection object for an accepted socket.
+     *
+     * @param socket    The socket associated to the accepted connection.
+     * @param deadline  The deadline of the connection, which also bounds the writes performed directly through the
+     *                  socket.
+     * @param watchdog  The watchdog of the server, which closes the socket if a write does not complete in time.
+     * @param socketIn  The reader used to receive requests from the client.
+     * @param socketOut The writer used to send responses to the client, whose writes are already bounded by the
+     *                  deadline (see {@link WriteWatchdog#guard(OutputStream, Socket, ClientDeadline)}).
+     * @param metrics   The metrics where the bytes sent and received directly through the socket are counted.
+     */
+    BlockingConnection(Socket socket, ClientDeadline deadline, WriteWatchdog watchdog, LineReader socketIn,
+                       ReplyWriter socketOut, ProtocolMetrics metrics) {
+        this.plainSocket = socket;
+        this.deadline = deadline;
+        this.watchdog = watchdog;
+        this.socket = socket;
+        this.socketIn = socketIn;
+        this.socketOut = socketOut;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public ReplyWriter getWriter() {
+        return socketOut;
+    }
+
+    /**
+     * Sends the region before returning. If the socket was accepted from a server socket channel and TLS was not
+     * started, the transfer is performed by the operating system (e.g., with sendfile); otherwise it is copied through
+     * the socket's output stream.
+     */
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        try (file) {
+            socketOut.flush();
+            // A TLS socket layered over a connected socket reports the channel of the underlying, plaintext socket
+            WritableByteChannel out = socket.getChannel() != null && !(socket instanceof SSLSocket) ?
+                    socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            while (count > 0) {
+                long written;
+                watchdog.writeStarted(plainSocket, deadline);
+                try {
+                    written = file.transferTo(position, Math.min(count, TRANSFER_SIZE), out);
+                } finally {
+                    watchdog.writeFinished(plainSocket, deadline);
+                }
+                if (written <= 0 && position >= file.size())
+                    throw new IOException("Message file is shorter than expected");
+                position += written;
+                count -= written;
+                metrics.addBytesOut(written);
+            }
+        }
+    }
+
+    /**
+     * Performs the handshake before returning, after sending the responses already written. The reader and writer
+     * are then switched to the streams of the TLS socket.
+     */
+    @Override
+    public void startTls() throws IOException {
+        socketOut.flush();
+        SSLSocket tlsSocket;
+        watchdog.writeStarted(plainSocket, deadline);
+        try {
+            tlsSocket = TlsContext.startHandshake(socket);
+        } finally {
+            watchdog.writeFinished(plainSocket, deadline);
+        }
+        socketIn.setInputStream(metrics.countInput(tlsSocket.getInputStream()));
+        socketOut.setOutputStream(watchdog.guard(metrics.countOutput(tlsSocket.getOutputStream()), plainSocket,
+                deadline));
+        socket = tlsSocket;
+    }
+
+    /**
+     * Completes the delivery before returning, waiting for the message to be made durable.
+     */
+    @Override
+    public void completeMessage(MailWriter writer, MailWriter.Completion completion) {
+        IOException error = null;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            writer.discard();
+            error = e;
+        }
+        completion.completed(error);
+    }
+
+    /**
+     * Sends the content before returning, copying it through the socket's output stream.
+     */
+    @Override
+    public void sendStream(InputStream in) throws IOException {
+        try (in) {
+            socketOut.flush();
+            in.transferTo(watchdog.guard(metrics.countOutput(socket.getOutputStream()), plainSocket, deadline));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * The connection to an individual client, as seen by its protocol session. Implemented by each transport.
+ */
+interface ClientConnection {
+
+    /**
+     * Returns the writer used to send responses to the client.
+     *
+     * @return The writer associated to the connection.
+     */
+    ReplyWriter getWriter();
+
+    /**
+     * Sends a region of a file to the client, after any response already written to the writer. Where possible, the
+     * content is transferred by the operating system directly from the file to the socket, without being copied
+     * into the application. The connection takes ownership of the file channel and closes it once the region has
+     * been sent, or if the connection is terminated before that.
+     *
+     * @param file     The file to be sent.
+     * @param position The position in the file of the first byte to be sent.
+     * @param count    The number of bytes to be sent.
+     * @throws IOException If there is an error reading the file or sending its content.
+     */
+    void sendFile(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Sends the remaining content of a stream to the client, after any response already written to the writer. Used
+     * for content that cannot be sent directly from a file, such as a compressed message. The connection takes
+     * ownership of the stream and closes it once its content has been sent, or if the connection is terminated before
+     * that.
+     *
+     * @param in The stream whose content is sent.
+     * @throws IOException If there is an error reading the stream or sending its content.
+     */
+    void sendStream(InputStream in) throws IOException;
+
+    /**
+     * Upgrades the connection to TLS (STARTTLS or STLS), once the responses already written have been sent in
+     * plaintext. All further requests and responses are then encrypted. Any request received after the current one
+     * and before the upgrade is discarded, since it was not protected by TLS.
+     *
+     * @throws IOException If TLS is not enabled, or if the upgrade fails, in which case the connection must be closed.
+     */
+    void startTls() throws IOException;
+
+    /**
+     * Completes the delivery of a message, and then calls the completion on the connection's thread, so it can write
+     * the response. No further request of the client is processed in the meantime, so responses to pipelined commands
+     * remain in order. Blocking transports wait for the message to be made durable; event loops instead resume the
+     * connection once it is, so that the other connections they serve are not stalled, and so that deliveries from
+     * several connections can share a group commit.
+     *
+     * @param writer     The writer of the message, whose content is complete.
+     * @param completion Called once the delivery can be acknowledged, or failed, in which case the message was
+     *                   discarded. Not called if the connection is closed in the meantime.
+     */
+    void completeMessage(MailWriter writer, MailWriter.Completion completion);
+}
@@ -0,0 +1,173 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Deadlines for receiving the requests of a client, so that a client that goes silent, or sends its requests one byte
+ * at a time, cannot hold on to a connection. Three timeouts apply:
+ * <ul>
+ *     <li>the idle timeout, while waiting for the first byte of a request, once the previous one was processed;</li>
+ *     <li>the command timeout, for the rest of a request line once its first byte was received, and for the content
+ *     of a BDAT chunk after its command;</li>
+ *     <li>the session timeout, for the whole connection.</li>
+ * </ul>
+ * The deadlines are tracked by the thread serving the connection, without a timer thread: blocking transports use
+ * the time remaining as the socket's read timeout before each read (see {@link #beforeRead(Socket)}), and event loops
+ * periodically check their connections for an expired deadline (see {@link #expired()}). Blocking transports also
+ * bound each write to the client (see {@link WriteWatchdog}), which is checked by the server's accepting thread.
+ */
+class ClientDeadline {
+
+    /**
+     * Idle timeout, in seconds, configurable with the <code>mail.timeout.idle</code> system property. The default
+     * satisfies both the five minutes an SMTP server should wait for a command (RFC 5321, section 4.5.3.2.7) and the
+     * ten minutes of the POP3 autologout timer (RFC 1939, section 3). A value of 0 disables the timeout.
+     */
+    public static final int IDLE_TIMEOUT = Integer.getInteger("mail.timeout.idle", 600);
+
+    /**
+     * Command timeout, in seconds, configurable with the <code>mail.timeout.command</code> system property. A value
+     * of 0 disables the timeout.
+     */
+    public static final int COMMAND_TIMEOUT = Integer.getInteger("mail.timeout.command", 120);
+
+    /**
+     * Session timeout, in seconds, configurable with the <code>mail.timeout.session</code> system property. A value
+     * of 0 disables the timeout.
+     */
+    public static final int SESSION_TIMEOUT = Integer.getInteger("mail.timeout.session", 3600);
+
+    private final long sessionDeadline;
+    private long deadline;
+    private boolean receiving;
+    /** Deadline of the write in progress on a blocking connection, read by the accepting thread. */
+    private volatile long writeDeadline = Long.MAX_VALUE;
+
+    /**
+     * Starts the session timeout and the idle timeout of a new connection.
+     */
+    ClientDeadline() {
+        this.sessionDeadline = deadline(SESSION_TIMEOUT);
+        awaitRequest();
+    }
+
+    /**
+     * Starts the idle timeout, once the previous request was processed.
+     */
+    void awaitRequest() {
+        receiving = false;
+        deadline = deadline(IDLE_TIMEOUT);
+    }
+
+    /**
+     * Starts the command timeout, once the first bytes of a request were received. Has no effect if the request was
+     * already started, so sending the request in parts does not extend the deadline.
+     */
+    void requestStarted() {
+        if (!receiving) {
+            receiving = true;
+            deadline = deadline(COMMAND_TIMEOUT);
+        }
+    }
+
+    /**
+     * Restarts the idle timeout when a client that has no request in progress accepted more of a long response, so
+     * that a client reading slowly is not disconnected while a client that stopped reading is.
+     */
+    void outputSent() {
+        if (!receiving)
+            deadline = deadline(IDLE_TIMEOUT);
+    }
+
+    /**
+     * Checks if a deadline has passed.
+     *
+     * @return true if the connection must be closed.
+     */
+    boolean expired() {
+        return Math.min(deadline, sessionDeadline) <= now();
+    }
+
+    /**
+     * Starts the deadline of a blocking write to the client, which must complete within the idle timeout.
+     */
+    void writeStarted() {
+        writeDeadline = deadline(IDLE_TIMEOUT);
+    }
+
+    /**
+     * Ends the deadline of a blocking write, once it completed.
+     */
+    void writeFinished() {
+        writeDeadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Checks if a blocking write is in progress past its deadline or past the session deadline. May be called by a
+     * thread other than the one serving the connection.
+     *
+     * @return true if the connection must be closed.
+     */
+    boolean writeExpired() {
+        long write = writeDeadline;
+        return write != Long.MAX_VALUE && Math.min(write, sessionDeadline) <= now();
+    }
+
+    /**
+     * Sets the socket's read timeout to the time remaining before the current deadline. Called before each blocking
+     * read, so that the deadline applies to the whole request rather than to each read.
+     *
+     * @param socket The socket of the connection.
+     * @throws SocketTimeoutException If the deadline has already passed.
+     * @throws SocketException        If the timeout cannot be set.
+     */
+    void beforeRead(Socket socket) throws SocketException, SocketTimeoutException {
+        long next = Math.min(deadline, sessionDeadline);
+        if (next == Long.MAX_VALUE) {
+            socket.setSoTimeout(0);
+            return;
+        }
+        long remaining = next - now();
+        if (remaining <= 0)
+            throw new SocketTimeoutException("Client deadline expired");
+        socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Counts an expired deadline as an idle, command or session timeout.
+     *
+     * @param metrics The metrics of the protocol.
+     */
+    void recordTimeout(ProtocolMetrics metrics) {
+        if (sessionDeadline <= now())
+            metrics.sessionTimedOut();
+        else if (receiving)
+            metrics.commandTimedOut();
+        else
+            metrics.idleTimedOut();
+    }
+
+    /**
+     * Counts an expired write deadline as an idle timeout, as the client stopped reading, or as a session timeout.
+     *
+     * @param metrics The metrics of the protocol.
+     */
+    void recordWriteTimeout(ProtocolMetrics metrics) {
+        if (sessionDeadline <= now())
+            metrics.sessionTimedOut();
+        else
+            metrics.idleTimedOut();
+    }
+
+    private static long deadline(int timeout) {
+        return timeout > 0 ? now() + timeout * 1000L : Long.MAX_VALUE;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
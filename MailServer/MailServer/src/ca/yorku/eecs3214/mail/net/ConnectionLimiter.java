@@ -0,0 +1,93 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limit on the number of concurrent connections from each client address, so that a single host cannot take all the
+ * sessions of a server. Connections over the limit receive an immediate "service unavailable" response and are
+ * closed. Used by the accepting thread of each transport; connections are released by the thread that closes them.
+ */
+class ConnectionLimiter {
+
+    /**
+     * Maximum number of concurrent connections from a single address, configurable with the
+     * <code>mail.connections.perAddress</code> system property. A value of 0 disables the limit.
+     */
+    public static final int MAX_CONNECTIONS_PER_ADDRESS = Integer.getInteger("mail.connections.perAddress", 64);
+
+    private final Map<InetAddress, Integer> connections = new ConcurrentHashMap<>();
+    private final ProtocolMetrics metrics;
+    private final byte[] busyResponse;
+
+    /**
+     * Creates the limiter of a server.
+     *
+     * @param metrics      The metrics where rejected connections are counted.
+     * @param busyResponse The response line sent to rejected clients.
+     */
+    ConnectionLimiter(ProtocolMetrics metrics, String busyResponse) {
+        this.metrics = metrics;
+        this.busyResponse = ReplyWriter.reply(busyResponse);
+    }
+
+    /**
+     * Admits an accepted connection if its address is under the limit, or otherwise rejects it.
+     *
+     * @param socket The socket of the accepted connection.
+     * @return true if the connection was admitted, in which case it must be released with {@link #release(Socket)}
+     * once closed, or false if it was rejected and closed.
+     */
+    boolean admit(Socket socket) {
+        if (MAX_CONNECTIONS_PER_ADDRESS <= 0)
+            return true;
+        boolean[] admitted = new boolean[1];
+        connections.compute(socket.getInetAddress(), (address, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= MAX_CONNECTIONS_PER_ADDRESS)
+                return count;
+            admitted[0] = true;
+            return current + 1;
+        });
+        if (!admitted[0]) {
+            System.out.println("Rejected a connection from " + socket.getRemoteSocketAddress() +
+                    " (too many connections from the address)");
+            metrics.connectionRejectedPerAddress();
+            reject(socket);
+        }
+        return admitted[0];
+    }
+
+    /**
+     * Releases a connection admitted by {@link #admit(Socket)}.
+     *
+     * @param socket The socket of the connection.
+     */
+    void release(Socket socket) {
+        if (MAX_CONNECTIONS_PER_ADDRESS <= 0)
+            return;
+        connections.computeIfPresent(socket.getInetAddress(), (address, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Sends the busy response to a client and closes the connection. The response is small enough to fit in the
+     * socket's send buffer, so this does not block on the client.
+     *
+     * @param socket The socket of the connection, in blocking mode.
+     */
+    void reject(Socket socket) {
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(busyResponse);
+            out.flush();
+        } catch (IOException e) {
+            // The client is already gone, nothing else to do
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/**
+ * Non-blocking transport that runs the protocol sessions of many clients over a small, fixed set of event loop
+ * threads. The main thread accepts new connections, up to a limit per client address (see {@link ConnectionLimiter}),
+ * and hands them to the event loops in round-robin order. Each event loop waits on its own Selector, splits the bytes
+ * received from each client into lines and passes them to the client's {@link LineSession}. Responses are buffered
+ * and written whenever the socket can accept them, so no thread ever blocks on an individual client. Deliveries that
+ * must be made durable are completed by other threads, which hand the connection back to its event loop. Each event
+ * loop also closes its connections whose {@link ClientDeadline} has passed, checking them periodically.
+ */
+class EventLoopServer {
+
+    /**
+     * Number of event loop threads, configurable with the <code>mail.eventloop.threads</code> system property.
+     */
+    public static final int EVENT_LOOP_THREADS = Integer.getInteger("mail.eventloop.threads",
+            Runtime.getRuntime().availableProcessors());
+    public static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * Interval, in milliseconds, at which each event loop checks the deadlines of its connections. A connection is
+     * closed at most this long after its deadline.
+     */
+    public static final long DEADLINE_CHECK_INTERVAL = 1000;
+
+    private final int port;
+    private final Function<ClientConnection, LineSession> sessionFactory;
+    private final ProtocolMetrics metrics;
+    private final ConnectionLimiter limiter;
+
+    /**
+     * Creates a new event loop server.
+     *
+     * @param port           The listening port.
+     * @param sessionFactory Function that creates the protocol session for a new connection.
+     * @param metrics        The metrics where the bytes received and sent, rejected connections and timeouts are
+     *                       counted.
+     * @param busyResponse   The response line sent to clients rejected because their address has too many
+     *                       connections.
+     */
+    EventLoopServer(int port, Function<ClientConnection, LineSession> sessionFactory, ProtocolMetrics metrics,
+                    String busyResponse) {
+        this.port = port;
+        this.sessionFactory = sessionFactory;
+        this.metrics = metrics;
+        this.limiter = new ConnectionLimiter(metrics, busyResponse);
+    }
+
+    /**
+     * Starts the event loop threads and repeatedly accepts new connections. Only returns in case of an exception.
+     *
+     * @throws IOException In case of an exception creating the server socket, the selectors or accepting new
+     *                     connections.
+     */
+    void serve() throws IOException {
+        EventLoop[] loops = new EventLoop[Math.max(1, EVENT_LOOP_THREADS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Waiting for connections on port " + serverChannel.socket().getLocalPort() + " (" +
+                    loops.length + " event loops)...");
+            //noinspection InfiniteLoopStatement
+            for (int next = 0; ; next = (next + 1) % loops.length) {
+                SocketChannel channel = serverChannel.accept();
+                if (!limiter.admit(channel.socket()))
+                    continue;
+                System.out.println("Accepted a connection from " + channel.getRemoteAddress());
+                loops[next].register(channel);
+            }
+        }
+    }
+
+    /**
+     * A single event loop thread, responsible for all I/O of the connections assigned to it.
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long lastDeadlineCheck = System.nanoTime();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hands a newly accepted connection to this event loop. May be called from any thread.
+         *
+         * @param channel The channel associated to the accepted connection.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs a task on this event loop's thread, e.g., to resume a connection once its delivery completed. May be
+         * called from any thread.
+         *
+         * @param task The task, which must not block.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                try {
+                    selector.select(DEADLINE_CHECK_INTERVAL);
+                } catch (IOException e) {
+                    System.err.println("Error waiting for events in the event loop.");
+                    e.printStackTrace();
+                    continue;
+                }
+
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null)
+                    open(channel);
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable())
+                            connection.onWritable(readBuffer);
+                        if (key.isValid() && key.isReadable())
+                            connection.onReadable(readBuffer);
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Error in client's connection handling.");
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - lastDeadlineCheck >= DEADLINE_CHECK_INTERVAL * 1_000_000) {
+                    lastDeadlineCheck = now;
+                    checkDeadlines();
+                }
+            }
+        }
+
+        /**
+         * Closes the connections whose deadline has passed. Cancelled keys remain in the key set until the next
+         * selection, so connections can be closed while iterating.
+         */
+        private void checkDeadlines() {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (key.isValid() && connection != null && connection.deadline.expired())
+                    connection.timeOut();
+            }
+        }
+
+        private void open(SocketChannel channel) {
+            Connection connection = null;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                connection = new Connection(this, channel, key);
+                key.attach(connection);
+                connection.open();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error setting up an individual client's handler.");
+                e.printStackTrace();
+                if (connection != null) {
+                    connection.close();
+                } else {
+                    limiter.release(channel.socket());
+                    try {
+                        channel.close();
+                    } catch (IOException ex) {
+                        // Nothing else to do
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * State of an individual client connection: the bytes of a partially received line, the responses waiting to be
+     * sent, the TLS layer once the connection is upgraded, and the protocol session itself. The line is received into
+     * the same buffer for every request, so reading a request does not create objects.
+     */
+    private class Connection implements ClientConnection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final RequestLine line = new RequestLine();
+        private final ClientDeadline deadline = new ClientDeadline();
+        private final OutputBuffer outputBuffer = new OutputBuffer();
+        private final ReplyWriter socketOut;
+        private final LineSession session;
+        private TlsChannel tls = null;
+        private boolean tlsRequested = false;
+        private boolean closing = false;
+        private boolean closed = false;
+        /** Whether requests are not processed until a delivery completes. */
+        private boolean suspended = false;
+        /** Bytes received after the request that suspended the connection, in read mode. */
+        private ByteBuffer deferredInput = null;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.socketOut = new ReplyWriter(outputBuffer);
+            this.session = sessionFactory.apply(this);
+        }
+
+        @Override
+        public ReplyWriter getWriter() {
+            return socketOut;
+        }
+
+        /**
+         * Queues the region to be sent once the preceding responses have been written. The transfer then proceeds
+         * whenever the socket is writable, without blocking the event loop.
+         */
+        @Override
+        public void sendFile(FileChannel file, long position, long count) throws IOException {
+            socketOut.flush();
+            outputBuffer.addRegion(new FileRegion(file, position, count));
+        }
+
+        /**
+         * Queues the stream to be sent once the preceding responses have been written. Its content is then read a
+         * buffer at a time, whenever the socket is writable.
+         */
+        @Override
+        public void sendStream(InputStream in) throws IOException {
+            socketOut.flush();
+            outputBuffer.addRegion(new StreamRegion(in));
+        }
+
+        /**
+         * Defers the upgrade until the responses already written have been sent, without blocking the event loop. The
+         * handshake then progresses as the client's messages are received.
+         */
+        @Override
+        public void startTls() throws IOException {
+            if (!TlsContext.isEnabled())
+                throw new IOException("TLS is not enabled");
+            socketOut.flush();
+            tlsRequested = true;
+        }
+
+        /**
+         * Completes the delivery without blocking the event loop. If the message must still be made durable or queued,
+         * the connection is suspended: input received in the meantime is kept, and the connection stops reading
+         * until the completion is run by the event loop, after which the kept input is processed.
+         */
+        @Override
+        public void completeMessage(MailWriter writer, MailWriter.Completion completion) {
+            CompletableFuture<IOException> done = new CompletableFuture<>();
+            writer.close(done::complete);
+            if (done.isDone()) {
+                completion.completed(done.join());
+                return;
+            }
+            suspended = true;
+            done.thenAccept(error -> loop.execute(() -> resume(completion, error)));
+        }
+
+        /**
+         * Runs the completion of a delivery, and processes the input received while the connection was suspended.
+         * Runs on the event loop's thread.
+         */
+        private void resume(MailWriter.Completion completion, IOException error) {
+            if (closed)
+                return;
+            suspended = false;
+            try {
+                completion.completed(error);
+                ByteBuffer input = deferredInput;
+                deferredInput = null;
+                if (input != null)
+                    handleInput(input);
+                if (!suspended && !closing && tls != null && tls.hasBufferedInput()) {
+                    onReadable(loop.readBuffer);
+                    return;
+                }
+                if (line.length() > 0 || session.getChunkRemaining() > 0)
+                    deadline.requestStarted();
+                flushOutput();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error in client's connection handling.");
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        void open() throws IOException {
+            session.open();
+            flushOutput();
+        }
+
+        /**
+         * Reads all available bytes and passes every complete line to the session. Input is not processed further
+         * once the session requests the connection to be closed, input that follows a request to start TLS is
+         * discarded, and input that follows a delivery not yet completed is kept until the connection is resumed.
+         * Over TLS, the socket is read once, but every complete record received is processed.
+         */
+        void onReadable(ByteBuffer readBuffer) throws IOException {
+            int read;
+            do {
+                readBuffer.clear();
+                read = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                metrics.addBytesIn(read);
+                readBuffer.flip();
+                handleInput(readBuffer);
+            } while (read > 0 && tls != null && tls.hasBufferedInput() && !closing && !suspended);
+            if (line.length() > 0 || session.getChunkRemaining() > 0)
+                deadline.requestStarted();
+            flushOutput();
+        }
+
+        private void handleInput(ByteBuffer readBuffer) throws IOException {
+            while (readBuffer.hasRemaining() && !closing && !tlsRequested && !suspended) {
+                long chunk = session.getChunkRemaining();
+                if (chunk > 0) {
+                    int length = (int) Math.min(chunk, readBuffer.remaining());
+                    int position = readBuffer.position();
+                    readBuffer.position(position + length);
+                    if (!session.handleChunk(readBuffer.array(), readBuffer.arrayOffset() + position, length))
+                        closing = true;
+                    if (session.getChunkRemaining() == 0)
+                        deadline.awaitRequest();
+                    continue;
+                }
+                byte[] bytes = readBuffer.array();
+                int start = readBuffer.arrayOffset() + readBuffer.position();
+                int limit = readBuffer.arrayOffset() + readBuffer.limit();
+                int end = start;
+                while (end < limit && bytes[end] != '\n')
+                    end++;
+                line.append(bytes, start, end - start);
+                if (end == limit) {
+                    // The rest of the line has not been received yet
+                    readBuffer.position(readBuffer.limit());
+                    continue;
+                }
+                readBuffer.position(end + 1 - readBuffer.arrayOffset());
+                line.end();
+                boolean keepOpen = session.handleLine(line);
+                line.clear();
+                deadline.awaitRequest();
+                if (!keepOpen)
+                    closing = true;
+            }
+            if (suspended && readBuffer.hasRemaining())
+                deferredInput = ByteBuffer.allocate(readBuffer.remaining()).put(readBuffer).flip();
+        }
+
+        /**
+         * Sends pending output, then resumes processing input that was already received over TLS, which the socket
+         * would not report as readable.
+         */
+        void onWritable(ByteBuffer readBuffer) throws IOException {
+            deadline.outputSent();
+            flushOutput();
+            if (!closed && key.interestOps() == SelectionKey.OP_READ && tls != null && tls.hasBufferedInput())
+                onReadable(readBuffer);
+        }
+
+        /**
+         * Sends as much of the buffered output as the socket accepts. While output remains, the connection waits for
+         * the socket to become writable and stops reading new requests, so a client that does not read its responses
+         * cannot make the server buffer an unbounded amount of data. The exception is a TLS handshake waiting for the
+         * client's next message, which is read instead. Once all output was sent, a requested upgrade to TLS starts, and
+         * a suspended connection stops reading until it is resumed.
+         */
+        private void flushOutput() throws IOException {
+            socketOut.flush();
+            WritableByteChannel sink = tls != null ? tls : channel;
+            if (outputBuffer.writeTo(sink, metrics) && (tls == null || tls.flush())) {
+                if (closing) {
+                    close();
+                    return;
+                }
+                if (tlsRequested) {
+                    tlsRequested = false;
+                    line.clear();
+                    tls = new TlsChannel(channel, TlsContext.createEngine());
+                }
+                key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
+            } else if (tls != null && tls.isWaitingForInput()) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Closes the connection once its deadline has passed, after sending the session's response, if the socket
+         * accepts it without blocking.
+         */
+        void timeOut() {
+            System.out.println("Closing the connection from " + channel.socket().getRemoteSocketAddress() +
+                    " after a timeout");
+            deadline.recordTimeout(metrics);
+            session.timedOut();
+            try {
+                socketOut.flush();
+                outputBuffer.writeTo(tls != null ? tls : channel, metrics);
+            } catch (IOException e) {
+                // The connection is closed anyway
+            }
+            close();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            session.close();
+            outputBuffer.release();
+            if (tls != null)
+                tls.close();
+            limiter.release(channel.socket());
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the socket.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The responses that were not yet written to the socket: a growable byte buffer, preceded by any file regions or
+     * streams queued with {@link ClientConnection#sendFile(FileChannel, long, long)} and
+     * {@link ClientConnection#sendStream(InputStream)}, and the bytes written before them.
+     */
+    private static class OutputBuffer extends OutputStream {
+
+        private final Deque<Object> queued = new ArrayDeque<>();
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            buffer.put(b, off, len);
+        }
+
+        private void ensureCapacity(int len) {
+            if (buffer.remaining() >= len)
+                return;
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + len));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        /**
+         * Queues a region of a file, or a stream, to be sent after the bytes written so far.
+         */
+        void addRegion(Region region) {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                queued.add(buffer);
+                buffer = ByteBuffer.allocate(1024);
+            }
+            queued.add(region);
+        }
+
+        /**
+         * Writes the queued content to a non-blocking channel: the socket channel, or its TLS layer.
+         *
+         * @param channel The channel the content is written to.
+         * @param metrics The metrics where the bytes written are counted.
+         * @return true if all queued content was written, or false if some remains.
+         * @throws IOException If there is an error writing to the channel or reading a queued file.
+         */
+        boolean writeTo(WritableByteChannel channel, ProtocolMetrics metrics) throws IOException {
+            while (!queued.isEmpty()) {
+                Object head = queued.peek();
+                if (head instanceof Region) {
+                    if (!((Region) head).writeTo(channel, metrics))
+                        return false;
+                    ((Region) head).release();
+                } else {
+                    ByteBuffer bytes = (ByteBuffer) head;
+                    while (bytes.hasRemaining()) {
+                        int written = channel.write(bytes);
+                        if (written == 0)
+                            return false;
+                        metrics.addBytesOut(written);
+                    }
+                }
+                queued.poll();
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    int written = channel.write(buffer);
+                    if (written == 0)
+                        return false;
+                    metrics.addBytesOut(written);
+                }
+                return true;
+            } finally {
+                buffer.compact();
+            }
+        }
+
+        /**
+         * Closes the files and streams of any regions that were not sent.
+         */
+        void release() {
+            for (Object item : queued) {
+                if (item instanceof Region)
+                    ((Region) item).release();
+            }
+            queued.clear();
+        }
+    }
+
+    /**
+     * Content queued in the output buffer that is not held in memory.
+     */
+    private interface Region {
+
+        /**
+         * Writes as much of the content as the non-blocking channel accepts.
+         *
+         * @return true if all the content was written, or false if some remains.
+         */
+        boolean writeTo(WritableByteChannel channel, ProtocolMetrics metrics) throws IOException;
+
+        /**
+         * Closes the source of the content.
+         */
+        void release();
+    }
+
+    /**
+     * A region of a file waiting to be sent, transferred directly from the file to the socket. Over TLS, the file is
+     * instead read into a temporary buffer to be encrypted.
+     */
+    private static class FileRegion implements Region {
+
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel, ProtocolMetrics metrics) throws IOException {
+            while (remaining > 0) {
+                long written = file.transferTo(position, remaining, channel);
+                if (written == 0) {
+                    // Otherwise a truncated file would be retried on every OP_WRITE without making progress
+                    if (position >= file.size())
+                        throw new IOException("Message file is shorter than expected");
+                    return false;
+                }
+                metrics.addBytesOut(written);
+                position += written;
+                remaining -= written;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+
+    /**
+     * A stream waiting to be sent, read into a buffer whenever the previous buffer was written to the socket.
+     */
+    private static class StreamRegion implements Region {
+
+        private static final int BUFFER_SIZE = 8192;
+
+        private final InputStream in;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+
+        StreamRegion(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel, ProtocolMetrics metrics) throws IOException {
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    int read = in.read(buffer.array(), 0, buffer.capacity());
+                    if (read < 0)
+                        return true;
+                    buffer.limit(read).position(0);
+                }
+                int written = channel.write(buffer);
+                if (written == 0)
+                    return false;
+                metrics.addBytesOut(written);
+            }
+        }
+
+        @Override
+        public void release() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+}
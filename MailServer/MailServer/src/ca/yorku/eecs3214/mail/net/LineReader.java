@@ -0,0 +1,127 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * Buffered reader for blocking connections that can read both request lines and raw binary content (e.g., a BDAT
+ * chunk) from the same stream. Unlike a BufferedReader, lines are not decoded but copied as bytes into a
+ * {@link RequestLine}, so binary content that follows a request line is not corrupted by being decoded in advance, and
+ * reading a line does not create objects.
+ * <p>
+ * Reads are bounded by the client's {@link ClientDeadline}: each read fails with a SocketTimeoutException once the
+ * deadline has passed.
+ */
+class LineReader {
+
+    public static final int BUFFER_SIZE = 8192;
+
+    private InputStream in;
+    private final Socket socket;
+    private final ClientDeadline deadline;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    /**
+     * Creates a new reader.
+     *
+     * @param in       The stream to read from, usually the socket's input stream.
+     * @param socket   The socket whose read timeout enforces the deadline.
+     * @param deadline The deadline for receiving each request.
+     */
+    LineReader(InputStream in, Socket socket, ClientDeadline deadline) {
+        this.in = in;
+        this.socket = socket;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Replaces the underlying stream, e.g., once the connection is upgraded to TLS. Bytes that were buffered from the
+     * previous stream are discarded: a client must wait for the upgrade before sending more requests, so any such bytes
+     * were not protected by TLS and must not be processed (RFC 3207, section 5).
+     *
+     * @param in The stream to read from from now on.
+     */
+    void setInputStream(InputStream in) {
+        this.in = in;
+        position = 0;
+        limit = 0;
+    }
+
+    /**
+     * Reads a line terminated by LF or CRLF. The bytes of the line are copied from the read buffer into the given
+     * line, without being decoded. The idle timeout applies until the first byte of the line is received, and the
+     * command timeout until the rest of it is.
+     *
+     * @param line The line where the bytes are stored, replacing its previous content.
+     * @return true if a line was read, or false if the end of the stream was reached.
+     * @throws IOException If there is an error reading from the stream.
+     */
+    boolean readLine(RequestLine line) throws IOException {
+        line.clear();
+        deadline.awaitRequest();
+        boolean started = false;
+        while (true) {
+            if (position == limit && !fill()) {
+                line.end();
+                return started;
+            }
+            if (!started) {
+                started = true;
+                deadline.requestStarted();
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n')
+                position++;
+            line.append(buffer, start, position - start);
+            if (position < limit) {
+                position++; // Skip LF
+                line.end();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reads raw bytes, starting with those already buffered. Bounded by the command timeout of the request line that
+     * announced the content.
+     *
+     * @param b   Array where the bytes are stored
+     * @param off Offset of the first byte
+     * @param len Maximum number of bytes to read
+     * @return The number of bytes read, or -1 if the end of the stream was reached.
+     * @throws IOException If there is an error reading from the stream.
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (position == limit) {
+            deadline.beforeRead(socket);
+            return in.read(b, off, len);
+        }
+        int length = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, length);
+        position += length;
+        return length;
+    }
+
+    /**
+     * Tells whether more content can be read without blocking.
+     *
+     * @return true if content is buffered or available from the stream.
+     * @throws IOException If there is an error checking the stream.
+     */
+    boolean ready() throws IOException {
+        return position < limit || in.available() > 0;
+    }
+
+    private boolean fill() throws IOException {
+        deadline.beforeRead(socket);
+        int read = in.read(buffer);
+        if (read < 0)
+            return false;
+        position = 0;
+        limit = read;
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+
+/**
+ * Protocol state machine for an individual client, driven one request line at a time. A session never reads from the
+ * network itself, so the same implementation can be run by a blocking thread-per-connection handler or by an event
+ * loop multiplexing many connections.
+ */
+interface LineSession {
+
+    /**
+     * Sends the initial welcome message.
+     */
+    void open();
+
+    /**
+     * Processes a single request line, including any line that is part of a message body.
+     *
+     * @param line The line received from the client, without the line terminator. The line is only valid until this
+     *             method returns, as transports reuse it for the next line.
+     * @return true if the session should continue, or false if the connection must be closed once any pending
+     * response has been sent.
+     * @throws IOException If there is an error processing the request.
+     */
+    boolean handleLine(RequestLine line) throws IOException;
+
+    /**
+     * Returns the number of bytes the session expects to receive as binary content (e.g., a BDAT chunk) before the next
+     * request line. While this is positive, transports must pass the bytes received to
+     * {@link #handleChunk(byte[], int, int)} instead of splitting them into lines.
+     *
+     * @return The number of bytes still expected, or 0 if the session expects a request line.
+     */
+    default long getChunkRemaining() {
+        return 0;
+    }
+
+    /**
+     * Processes bytes received as binary content. Only called while {@link #getChunkRemaining()} is positive, with at
+     * most that many bytes. Sessions whose protocol has no binary content never expect any, so by default the bytes
+     * are reported as a protocol error and the connection is closed.
+     *
+     * @param buffer Array containing the received bytes
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @return true if the session should continue, or false if the connection must be closed once any pending
+     * response has been sent.
+     * @throws IOException If there is an error processing the content.
+     */
+    default boolean handleChunk(byte[] buffer, int offset, int length) throws IOException {
+        System.err.println("Protocol error: " + getClass().getSimpleName() + " received " + length +
+                " bytes of unexpected binary content, closing the connection");
+        return false;
+    }
+
+    /**
+     * Writes the response, if any, sent to a client that did not send its next request in time (see
+     * {@link ClientDeadline}). The connection is closed once the response was sent, and {@link #close()} is then
+     * called as usual.
+     */
+    default void timedOut() {
+    }
+
+    /**
+     * Releases any resources held by the session. Called once the connection is terminated, whether or not the client
+     * issued the QUIT command.
+     */
+    void close();
+}
@@ -1,34 +1,44 @@
 package ca.yorku.eecs3214.mail.net;
 
-import ca.yorku.eecs3214.mail.mailbox.MailMessage;
-import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 
-public class MyPOPServer extends Thread {
+public class MyPOPServer implements Runnable {
 
-    private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
+    /**
+     * Response sent to clients whose connection is rejected, because the server is at capacity or because their
+     * address has too many connections (see {@link ConnectionLimiter}).
+     */
+    static final String BUSY_RESPONSE = "-ERR Too many connections, try again later";
 
-    // TODO Additional properties, if needed
-    private boolean isAuthenticated = false;
-    private String currentUser = null;
-    private Mailbox currentMailbox = null;
+    private final Socket socket;
+    private final ClientDeadline deadline;
+    private final LineReader socketIn;
+    private final ReplyWriter socketOut;
+    private final POPSession session;
 
     /**
      * Initializes an object responsible for a connection to an individual client.
      *
-     * @param socket The socket associated to the accepted connection.
+     * @param socket   The socket associated to the accepted connection.
+     * @param watchdog The watchdog of the server, which bounds the writes to the client.
      * @throws IOException If there is an error attempting to retrieve the socket's
      *                     information.
      */
-    public MyPOPServer(Socket socket) throws IOException {
+    public MyPOPServer(Socket socket, WriteWatchdog watchdog) throws IOException {
         this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        this.deadline = new ClientDeadline();
+        this.socketIn = new LineReader(Metrics.POP3.countInput(socket.getInputStream()), socket, deadline);
+        // Only flushed by the loop below, so the responses to pipelined commands are sent together
+        this.socketOut = new ReplyWriter(watchdog.guard(Metrics.POP3.countOutput(socket.getOutputStream()), socket,
+                deadline));
+        this.session = new POPSession(new BlockingConnection(socket, deadline, watchdog, socketIn, socketOut, Metrics.POP3));
     }
 
     /**
@@ -42,48 +52,25 @@ public class MyPOPServer extends Thread {
     @Override
     public void run() {
         try {
-            socketOut.println("+OK POP3 server ready");
-            String line;
-            while ((line = socketIn.readLine()) != null) {
-                // Ignore empty request lines
-                if (line.trim().isEmpty()) continue;
-
-                // Split the command and arguments for easier handling
-                String[] commandParts = line.split(" ", 2);
-                String command = commandParts[0].toUpperCase();
-
-                switch (command) {
-                    case "USER":
-                        handleUser(commandParts.length > 1 ? commandParts[1] : "");
-                        break;
-                    case "PASS":
-                        handlePass(commandParts.length > 1 ? commandParts[1] : "");
-                        break;
-                    case "STAT":
-                        handleStat();
-                        break;
-                    case "LIST":
-                        handleList(commandParts.length > 1 ? commandParts[1] : "");
-                        break;
-                    case "RETR":
-                        handleRetr(commandParts.length > 1 ? commandParts[1] : "");
-                        break;
-                    case "DELE":
-                        handleDele(commandParts.length > 1 ? commandParts[1] : "");
-                        break;
-                    case "RSET":
-                        handleRset();
-                        break;
-                    case "NOOP":
-                        handleNoop();
-                        break;
-                    case "QUIT":
-                        handleQuit();
-                        return; // Exit the loop to close the connection
-                    default:
-                        socketOut.println("-ERR Unknown command");
-                        break;
-                }
+            session.open();
+            socketOut.flush();
+            RequestLine line = new RequestLine();
+            while (socketIn.readLine(line)) {
+                if (!session.handleLine(line))
+                    break; // Exit the loop to close the connection
+                // Responses are only sent once all commands received so far were processed
+                if (!socketIn.ready())
+                    socketOut.flush();
+            }
+            socketOut.flush();
+        } catch (SocketTimeoutException e) {
+            System.out.println("Closing the connection from " + socket.getRemoteSocketAddress() + " after a timeout");
+            deadline.recordTimeout(Metrics.POP3);
+            session.timedOut();
+            try {
+                socketOut.flush();
+            } catch (IOException ex) {
+                // The connection is closed anyway
             }
         } catch (IOException e) {
             System.err.println("Error in client's connection handling: " + e.getMessage());
@@ -93,187 +80,24 @@ public class MyPOPServer extends Thread {
             } catch (IOException e) {
                 System.err.println("Error closing the socket: " + e.getMessage());
             }
+            session.close();
         }
     }
 
-
-    private void handleUser(String line) {
-        // Split the command to get the username
-        if (line.equals("")) {
-            socketOut.println("-ERR Missing username");
-            return;
-        }
-        currentUser = line;
-        // According to RFC, always respond positively here, but don't authenticate yet
-        socketOut.println("+OK User name accepted, password required");
-    }
-
-    private void handlePass(String line) {
-        if (currentUser == null) {
-            socketOut.println("-ERR Send USER command first");
-            return;
-        }
-        
-        if (line.equals("")) {
-            socketOut.println("-ERR Missing password");
-            return;
-        }
-        // Check if user and password are correct. For simplicity, assume these methods exist.
-        if (Mailbox.isValidUser(currentUser)) {
-        	
-            isAuthenticated = true;
-            // Initialize mailbox
-            currentMailbox = new Mailbox(currentUser);
-            try {
-            	currentMailbox.loadMessages(line);
-            }
-            catch(Mailbox.MailboxNotAuthenticatedException e) {
-            	socketOut.println("-ERR");
-            	return;
-            }
-            socketOut.println("+OK Mailbox locked and ready");
-        } else {
-            socketOut.println("-ERR Invalid username or password");
-        }
-    }
-
-    private void handleQuit() {
-    	if (this.isAuthenticated) {
-    		this.currentMailbox.deleteMessagesTaggedForDeletion();
-    	}
-    	socketOut.println("+OK POP3 server signing off");
-    }
-
-
-    private void handleStat() throws IOException {
-        if (!isAuthenticated) {
-            socketOut.println("-ERR Authenticate first");
-            return;
-        }
-        int messageCount = currentMailbox.size(false); // false to exclude deleted messages
-        long totalSize = currentMailbox.getTotalUndeletedFileSize(false);
-        socketOut.println("+OK " + messageCount + " " + totalSize);
-    }
-
-    private void handleList(String line) throws IOException {
-        if (!isAuthenticated) {
-            socketOut.println("-ERR Authenticate first");
-            return;
-        }
-        if (line.equals("")) {
-            // List all messages
-            int messageCount = currentMailbox.size(false); // Exclude deleted messages
-            long totalSize = currentMailbox.getTotalUndeletedFileSize(false);
-            socketOut.println("+OK " + messageCount + " messages (" + totalSize + " octets)");
-            int i =1;
-            for(MailMessage message: currentMailbox) {
-            	if(!message.isDeleted()) {
-            		socketOut.println(i + " " + message.getFileSize());
-            		
-            	}
-            	i++;
-            }
-
-            socketOut.println(".");
-        } else if (!line.equals("")) {
-            // List specific message
-            try {
-                int msgNumber = Integer.parseInt(line);
-                MailMessage message = currentMailbox.getMailMessage(msgNumber);
-                if (message.isDeleted()) {
-                    socketOut.println("-ERR Message " + msgNumber + " deleted");
-                } else {
-                    socketOut.println("+OK " + msgNumber + " " + message.getFileSize());
-                }
-            } catch (NumberFormatException | IndexOutOfBoundsException e) {
-                socketOut.println("-ERR Invalid message number");
-            }
-        } else {
-            socketOut.println("-ERR Too many arguments");
-        }
-    }
-
-    private void handleRetr(String line) throws IOException {
-        if (!isAuthenticated) {
-
-            socketOut.println("-ERR Authenticate first");
-            return;
-        }
-        if (line.equals("")) {
-            socketOut.println("-ERR Invalid RETR usage");
-            return;
-        }
-        try {
-            int msgNumber = Integer.parseInt(line);
-            if (msgNumber <=0 ) {
-                socketOut.println("-ERR Message " + msgNumber + " deleted");
-                return;
-            }
-            MailMessage message = currentMailbox.getMailMessage(msgNumber);
-            if (message.isDeleted()) {
-                socketOut.println("-ERR Message " + msgNumber + " deleted");
-                return;
-            }
-            socketOut.println("+OK " + message.getFileSize() + " octets");
-            try (BufferedReader reader = new BufferedReader(new FileReader(message.getFile()))) {
-                String msgLine;
-                while ((msgLine = reader.readLine()) != null) {
-                    socketOut.println(msgLine);
-                }
-                socketOut.println(".");
-            }
-        } catch (NumberFormatException | IndexOutOfBoundsException e) {
-            socketOut.println("-ERR Invalid message number");
-        }
-    }
-
-    private void handleDele(String line) throws IOException {
-        if (!isAuthenticated) {
-            socketOut.println("-ERR Authenticate first");
-            return;
-        }
-        if (line.equals("")) {
-            socketOut.println("-ERR Invalid DELE usage");
-            return;
-        }
-        try {
-            int msgNumber = Integer.parseInt(line);
-            MailMessage message = currentMailbox.getMailMessage(msgNumber);
-            if (message.isDeleted()) {
-                socketOut.println("-ERR Message " + msgNumber + " already deleted");
-            } else {
-                message.tagForDeletion();
-                socketOut.println("+OK Message " + msgNumber + " marked for deletion");
-            }
-        } catch (NumberFormatException | IndexOutOfBoundsException e) {
-            socketOut.println("-ERR Invalid message number");
-        }
-    }
-
-    private void handleRset() throws IOException {
-        if (!isAuthenticated) {
-            socketOut.println("-ERR Authenticate first");
-            return;
-        }
-        for (MailMessage message: currentMailbox) {
-        	if (message.isDeleted()) {
-        		message.undelete();
-        	}
-        	
-        }
-        
-        socketOut.println("+OK");
-    }
-
-    private void handleNoop() throws IOException {
-        socketOut.println("+OK");
-    }
-
     /**
      * Main process for the POP3 server. Handles the argument parsing and
      * creates a listening server socket. Repeatedly accepts new connections
      * from individual clients, creating a new server instance that handles
-     * communication with that client in a separate thread.
+     * communication with that client in a separate thread. If the "nio"
+     * transport mode is given after the port, connections are instead handled
+     * by a fixed set of event loop threads (see {@link EventLoopServer});
+     * with the "virtual" mode, each connection runs on a virtual thread, up
+     * to a maximum number of sessions (see {@link VirtualThreadServer}). In
+     * every mode, the number of concurrent connections from a single address
+     * is limited (see {@link ConnectionLimiter}), and clients that do not send
+     * their requests in time are disconnected (see {@link ClientDeadline}), as
+     * are clients that stop reading their responses (see
+     * {@link WriteWatchdog}).
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or
@@ -281,23 +105,48 @@ public class MyPOPServer extends Thread {
      */
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 1) {
-            throw new RuntimeException(
-                    "This application must be executed with exactly one argument, the listening port.");
+        TransportMode mode = TransportMode.fromArguments(args);
+        if (mode == TransportMode.NIO) {
+            new EventLoopServer(Integer.parseInt(args[0]), POPSession::new, Metrics.POP3, BUSY_RESPONSE).serve();
+            return;
+        }
+        if (mode == TransportMode.VIRTUAL) {
+            new VirtualThreadServer(Integer.parseInt(args[0]), MyPOPServer::new, Metrics.POP3, BUSY_RESPONSE).serve();
+            return;
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
+        ConnectionLimiter limiter = new ConnectionLimiter(Metrics.POP3, BUSY_RESPONSE);
+        WriteWatchdog watchdog = new WriteWatchdog(Metrics.POP3);
+        // Sockets accepted from a channel allow messages to be sent directly from the files (see BlockingConnection)
+        try (ServerSocket serverSocket = ServerSocketChannel.open().socket()) {
             serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(Integer.parseInt(args[0])));
+            watchdog.configure(serverSocket);
 
             System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
             // noinspection InfiniteLoopStatement
             while (true) {
-                Socket socket = serverSocket.accept();
+                watchdog.check();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (!limiter.admit(socket))
+                    continue;
                 System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
                 try {
-                    MyPOPServer handler = new MyPOPServer(socket);
-                    handler.start();
+                    MyPOPServer handler = new MyPOPServer(socket, watchdog);
+                    new Thread(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            limiter.release(socket);
+                        }
+                    }).start();
                 } catch (IOException e) {
+                    limiter.release(socket);
                     System.err.println("Error setting up an individual client's handler.");
                     e.printStackTrace();
                 }
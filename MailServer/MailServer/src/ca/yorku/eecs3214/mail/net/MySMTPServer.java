@@ -1,38 +1,44 @@
 package ca.yorku.eecs3214.mail.net;
 
-import ca.yorku.eecs3214.mail.mailbox.MailWriter;
-import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
 
 import java.io.*;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 
-public class MySMTPServer extends Thread {
+public class MySMTPServer implements Runnable {
+
+    /**
+     * Response sent to clients whose connection is rejected, because the server is at capacity or because their
+     * address has too many connections (see {@link ConnectionLimiter}).
+     */
+    static final String BUSY_RESPONSE = "421 Service not available, too many connections";
 
     private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
+    private final ClientDeadline deadline;
+    private final LineReader socketIn;
+    private final ReplyWriter socketOut;
+    private final SMTPSession session;
 
-    // TODO Additional properties, if needed
-    Mailbox mail;
-    boolean flag = false;
-    List<Mailbox> recipients = new ArrayList<Mailbox>();
-    String emailAddress;
-    MailWriter write;
     /**
      * Initializes an object responsible for a connection to an individual client.
      *
-     * @param socket The socket associated to the accepted connection.
+     * @param socket   The socket associated to the accepted connection.
+     * @param watchdog The watchdog of the server, which bounds the writes to the client.
      * @throws IOException If there is an error attempting to retrieve the socket's information.
      */
-    public MySMTPServer(Socket socket) throws IOException {
+    public MySMTPServer(Socket socket, WriteWatchdog watchdog) throws IOException {
         this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        // Reads raw bytes as well as lines, for the content of BDAT chunks
+        this.deadline = new ClientDeadline();
+        this.socketIn = new LineReader(Metrics.SMTP.countInput(socket.getInputStream()), socket, deadline);
+        // Only flushed by the loop below, so the responses to pipelined commands are sent together
+        this.socketOut = new ReplyWriter(watchdog.guard(Metrics.SMTP.countOutput(socket.getOutputStream()), socket,
+                deadline));
+        this.session = new SMTPSession(new BlockingConnection(socket, deadline, watchdog, socketIn, socketOut, Metrics.SMTP));
     }
 
     /**
@@ -44,179 +50,102 @@ public class MySMTPServer extends Thread {
     @Override
     public void run() {
         try (this.socket) {
-        	        socketOut.println("220 Welcome to MySMTPServer");
-        	        while (true) {
-        	            String userInput = socketIn.readLine();
-        	            String[] input = userInput.split(" ");
-        	            System.out.println(input);
-        	            if (userInput.equalsIgnoreCase("NOOP")) {
-        	                socketOut.println("250 OK");
-        	            } else if (userInput.equalsIgnoreCase("QUIT")) {
-        	                socketOut.println("221 Bye");
-        	                break; // Exit the loop to close the connection
-        	            } else if (input[0].equalsIgnoreCase("VRFY")){
-        	            	
-        	            	
-        	            	if(input.length == 1) { //invalid arguments
-        	            		socketOut.println("501");
-        	            	}
-        	            	else if (Mailbox.isValidUser(input[1])) { //valid
-        	            		socketOut.println("250");
-        	            	}
-        	            	else { //user not found
-        	            		socketOut.println("550");
-        	            	}
-        	            	
-        	            	
-        	            } else if (input[0].equalsIgnoreCase("EHLO") ||  input[0].equalsIgnoreCase("HELO")) {
-        	            	socketOut.println("250 " + MySMTPServer.getHostName());
-        	            	flag = true;
-        	            	
-        	            }else if (input[0].equalsIgnoreCase("MAIL")) {
-        	            	
-        	            	    if (!flag) { // EHLO or HELO not called
-        	            	        socketOut.println("503 Bad sequence of commands");
-        	            	    }
-        	            	    else if (input.length < 2 || !input[1].toUpperCase().startsWith("FROM:<") || !input[1].endsWith(">")) {
-        	            	        socketOut.println("501 Syntax error in parameters or arguments");
-        	            	    } else {
-        	            	        // Extract the email address from the command
-        	            	        emailAddress = input[1].substring(6, input[1].length() - 1); // Removes FROM:< at the start and > at the end
-        	            	        socketOut.println("250 OK");
-        	            	        // Reset or prepare for new message handling if necessary
-        	            	        this.recipients.clear(); // Assuming you want to reset the recipients list for each new MAIL command
-        	            	    }
-        	            	
-
-        	            	
-        	            }
-        	            else if (input[0].equalsIgnoreCase("RCPT")){
-        	            	
-        	            	
-        	            	if (!flag || this.emailAddress == null) { // EHLO or HELO not called
-        	                    socketOut.println("503 Bad sequence of commands");
-        	                } else if (input.length < 2 || !input[1].toUpperCase().startsWith("TO:<") || !input[1].endsWith(">")) {
-        	                    socketOut.println("501 Syntax error in parameters or arguments");
-        	                } else {
-        	                    // Extract the email address from the command
-        	                    String emailAddress = input[1].substring(4, input[1].length() - 1); // Removes TO:< at the start and > at the end
-        	                    if (Mailbox.isValidUser(emailAddress)) {
-        	                    	
-        	                    	Mailbox recipientMailbox = new Mailbox(emailAddress);
-        	                    	recipients.add(recipientMailbox); // Add to your list of recipient Mailbox objects
-        	                    	socketOut.println("250 OK");
-        	                        
-        	                    	
-        	                    } else {
-        	                        socketOut.println("550 No such user here");
-        	                    }
-        	                }
-        	            	
-        	            }else if (input[0].equalsIgnoreCase("DATA")) {
-        	            	
-        	            	if(recipients.isEmpty()) {
-        	            		socketOut.println("503");
-        	            		continue;
-        	            	}
-        	            	
-        	                socketOut.println("354 End data with <CR><LF>.<CR><LF>");
-        	                String emailData = new String();
-        	                String line;
-        	                while (!(line = socketIn.readLine()).equals(".")) {
-        	                    emailData += "" + line + "\r\n";
-        	                    
-        	                }
-        	                
-        	                // Now we have the email content in emailData
-        	                try (MailWriter writer = new MailWriter(recipients)) {
-        	                    writer.write(emailData.toString().toCharArray(), 0, emailData.length());
-        	                    // No need to manually flush here because close() will trigger flush()
-        	                } catch (IOException e) {
-        	                    e.printStackTrace();
-        	                    socketOut.println("451 Requested action aborted: local error in processing");
-        	                    return;
-        	                }
-        	                
-        	                socketOut.println("250 OK: Message received");
-        	                
-        	            }else if (input[0].equalsIgnoreCase("RSET")){
-        	            	
-        	            	this.mail = null;
-        	            	this.recipients.clear();
-        	            	this.emailAddress = null;
-        	            	socketOut.println("250");
-        	            	
-        	            }
-
-        	            else {
-        	                // Handle other commands here
-        	                socketOut.println("502 Command not implemented");
-        	            }
-        	        }
-        	    } catch (IOException e) {
-                    System.err.println("Error in client's connection handling.");
-                    e.printStackTrace();
-                } finally {
-        	        try {
-        	            if (socket != null && !socket.isClosed()) {
-        	                socket.close(); // Ensure the socket is closed
-        	                this.write.flush();
-        	            }
-        	        } catch (IOException e) {
-        	            System.err.println("Error closing the socket.");
-        	            e.printStackTrace();
-        	        }
-        	    }
-        	}
-		
-         
-    
-
-    /**
-     * Retrieves the name of the current host. Used in the response of commands like HELO and EHLO.
-     * @return A string corresponding to the name of the current host.
-     */
-    private static String getHostName() {
-        try {
-            return InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            try (BufferedReader reader = Runtime.getRuntime().exec(new String[] {"hostname"}).inputReader()) {
-                return reader.readLine();
-            } catch (IOException ex) {
-                return "unknown_host";
+            try {
+                session.open();
+                socketOut.flush();
+                byte[] chunk = new byte[LineReader.BUFFER_SIZE];
+                RequestLine line = new RequestLine();
+                while (true) {
+                    long chunkRemaining = session.getChunkRemaining();
+                    if (chunkRemaining > 0) {
+                        int read = socketIn.read(chunk, 0, (int) Math.min(chunkRemaining, chunk.length));
+                        if (read < 0 || !session.handleChunk(chunk, 0, read))
+                            break;
+                    } else {
+                        if (!socketIn.readLine(line) || !session.handleLine(line))
+                            break; // Exit the loop to close the connection
+                    }
+                    // Responses are only sent once all commands received so far were processed
+                    if (!socketIn.ready())
+                        socketOut.flush();
+                }
+                socketOut.flush();
+            } catch (SocketTimeoutException e) {
+                // Handled before the socket is closed, so the response can still be sent
+                System.out.println("Closing the connection from " + socket.getRemoteSocketAddress() +
+                        " after a timeout");
+                deadline.recordTimeout(Metrics.SMTP);
+                session.timedOut();
+                socketOut.flush();
             }
+        } catch (IOException e) {
+            System.err.println("Error in client's connection handling.");
+            e.printStackTrace();
+        } finally {
+            session.close();
         }
     }
 
     /**
      * Main process for the SMTP server. Handles the argument parsing and creates a listening server socket. Repeatedly
      * accepts new connections from individual clients, creating a new server instance that handles communication with
-     * that client in a separate thread.
+     * that client in a separate thread. If the "nio" transport mode is given after the port, connections are instead
+     * handled by a fixed set of event loop threads (see {@link EventLoopServer}); with the "virtual" mode, each
+     * connection runs on a virtual thread, up to a maximum number of sessions (see {@link VirtualThreadServer}). In
+     * every mode, the number of concurrent connections from a single address is limited (see
+     * {@link ConnectionLimiter}), and clients that do not send their requests in time are disconnected (see
+     * {@link ClientDeadline}), as are clients that stop reading their responses (see {@link WriteWatchdog}).
      *
      * @param args The command-line arguments.
      * @throws IOException In case of an exception creating the server socket or accepting new connections.
      */
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 1) {
-            throw new RuntimeException("This application must be executed with exactly one argument, the listening port.");
+        TransportMode mode = TransportMode.fromArguments(args);
+        if (mode == TransportMode.NIO) {
+            new EventLoopServer(Integer.parseInt(args[0]), SMTPSession::new, Metrics.SMTP, BUSY_RESPONSE).serve();
+            return;
+        }
+        if (mode == TransportMode.VIRTUAL) {
+            new VirtualThreadServer(Integer.parseInt(args[0]), MySMTPServer::new, Metrics.SMTP, BUSY_RESPONSE).serve();
+            return;
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
+        ConnectionLimiter limiter = new ConnectionLimiter(Metrics.SMTP, BUSY_RESPONSE);
+        WriteWatchdog watchdog = new WriteWatchdog(Metrics.SMTP);
+        // Sockets accepted from a channel allow messages to be sent directly from the files (see BlockingConnection)
+        try (ServerSocket serverSocket = ServerSocketChannel.open().socket()) {
             serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(Integer.parseInt(args[0])));
+            watchdog.configure(serverSocket);
             System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
             //noinspection InfiniteLoopStatement
             while (true) {
-                Socket socket = serverSocket.accept();
+                watchdog.check();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (!limiter.admit(socket))
+                    continue;
                 System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
                 try {
-                    MySMTPServer handler = new MySMTPServer(socket);
-                    handler.start();
+                    MySMTPServer handler = new MySMTPServer(socket, watchdog);
+                    new Thread(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            limiter.release(socket);
+                        }
+                    }).start();
                 } catch (IOException e) {
+                    limiter.release(socket);
                     System.err.println("Error setting up an individual client's handler.");
                     e.printStackTrace();
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
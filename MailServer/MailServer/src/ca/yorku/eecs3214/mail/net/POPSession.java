@@ -0,0 +1,543 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailMessage;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * POP3 state machine for an individual client connection. Receives request lines from a transport (see
+ * {@link MyPOPServer} and {@link EventLoopServer}) and writes the corresponding responses to the client.
+ * <p>
+ * Commands and message numbers are parsed from the bytes of the request line, and responses are either encoded once or
+ * assembled from text and numbers, so once a user is logged in, processing a command does not create objects.
+ */
+class POPSession implements LineSession {
+
+    /**
+     * Maximum length of a command line, without CRLF (RFC 2449, section 4).
+     */
+    public static final int MAX_COMMAND_LINE = 253;
+
+    private static final byte[] GREETING = ReplyWriter.reply("+OK POP3 server ready");
+    private static final byte[] OK = ReplyWriter.reply("+OK");
+    private static final byte[] USER_ACCEPTED = ReplyWriter.reply("+OK User name accepted, password required");
+    private static final byte[] LOCKED_AND_READY = ReplyWriter.reply("+OK Mailbox locked and ready");
+    private static final byte[] SIGNING_OFF = ReplyWriter.reply("+OK POP3 server signing off");
+    private static final byte[] TOP_FOLLOWS = ReplyWriter.reply("+OK Top of message follows");
+    private static final byte[] CAPABILITIES = TlsContext.isEnabled() ?
+            ReplyWriter.reply("+OK Capability list follows", "USER", "TOP", "UIDL", "STLS", ".") :
+            ReplyWriter.reply("+OK Capability list follows", "USER", "TOP", "UIDL", ".");
+    private static final byte[] CAPABILITIES_OVER_TLS = ReplyWriter.reply("+OK Capability list follows", "USER", "TOP",
+            "UIDL", ".");
+    private static final byte[] BEGIN_TLS = ReplyWriter.reply("+OK Begin TLS negotiation");
+    private static final byte[] END = ReplyWriter.reply(".");
+    private static final byte[] AUTHENTICATE_FIRST = ReplyWriter.reply("-ERR Authenticate first");
+    private static final byte[] INVALID_NUMBER = ReplyWriter.reply("-ERR Invalid message number");
+    private static final byte[] UNKNOWN_COMMAND = ReplyWriter.reply("-ERR Unknown command");
+    private static final byte[] LINE_TOO_LONG = ReplyWriter.reply("-ERR Line too long");
+    private static final byte[] TLS_NOT_AVAILABLE = ReplyWriter.reply("-ERR TLS not available");
+    private static final byte[] TLS_NOT_ALLOWED = ReplyWriter.reply("-ERR Command not permitted when TLS active or authenticated");
+
+    /**
+     * The commands supported by the session, named after their verbs.
+     */
+    private enum Command {
+        USER, PASS, STAT, LIST, RETR, DELE, RSET, NOOP, TOP, UIDL, CAPA, STLS, QUIT
+    }
+
+    private static final Command[] COMMANDS = Command.values();
+
+    private final ClientConnection connection;
+    private final ReplyWriter socketOut;
+
+    private boolean isAuthenticated = false;
+    private String currentUser = null;
+    private Mailbox currentMailbox = null;
+    private boolean tls = false;
+    private final ByteBuffer lastByte = ByteBuffer.allocate(1);
+
+    /**
+     * Creates the state machine for a new client connection.
+     *
+     * @param connection The connection used to send responses to the client.
+     */
+    POPSession(ClientConnection connection) {
+        this.connection = connection;
+        this.socketOut = connection.getWriter();
+    }
+
+    @Override
+    public void open() {
+        Metrics.POP3.sessionOpened();
+        socketOut.write(GREETING);
+    }
+
+    @Override
+    public boolean handleLine(RequestLine line) throws IOException {
+        // Ignore empty request lines
+        if (line.isBlank()) return true;
+
+        Command command = line.isTooLong(MAX_COMMAND_LINE) ? null : line.getVerb(COMMANDS);
+        // The argument is the rest of the line after the verb
+        int argument = line.getArgumentStart();
+
+        long start = System.nanoTime();
+        try {
+            if (command == null) {
+                socketOut.write(line.isTooLong(MAX_COMMAND_LINE) ? LINE_TOO_LONG : UNKNOWN_COMMAND);
+                return true;
+            }
+            switch (command) {
+                case USER:
+                    handleUser(line.toString(argument, line.length()));
+                    break;
+                case PASS:
+                    handlePass(line.toString(argument, line.length()));
+                    break;
+                case STAT:
+                    handleStat();
+                    break;
+                case LIST:
+                    handleList(line, argument);
+                    break;
+                case RETR:
+                    handleRetr(line, argument);
+                    break;
+                case DELE:
+                    handleDele(line, argument);
+                    break;
+                case RSET:
+                    handleRset();
+                    break;
+                case NOOP:
+                    handleNoop();
+                    break;
+                case TOP:
+                    handleTop(line, argument);
+                    break;
+                case UIDL:
+                    handleUidl(line, argument);
+                    break;
+                case CAPA:
+                    handleCapa();
+                    break;
+                case STLS:
+                    handleStls();
+                    break;
+                case QUIT:
+                    handleQuit();
+                    return false; // Close the connection
+            }
+        } finally {
+            Metrics.POP3.recordCommand(command != null ? command.name() : ProtocolMetrics.UNKNOWN_VERB,
+                    System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Parses a message number argument.
+     *
+     * @param line The request line.
+     * @param from The position of the first digit.
+     * @param to   The position following the last digit.
+     * @return The message number, or -1 if it is not a valid number.
+     */
+    private static int parseMessageNumber(RequestLine line, int from, int to) {
+        long number = line.parseNumber(from, to);
+        return number <= Integer.MAX_VALUE ? (int) number : -1;
+    }
+
+    @Override
+    public void close() {
+        Metrics.POP3.sessionClosed();
+        if (currentMailbox != null)
+            currentMailbox.close();
+    }
+
+    private void handleUser(String line) {
+        // Split the command to get the username
+        if (line.equals("")) {
+            socketOut.println("-ERR Missing username");
+            return;
+        }
+        currentUser = line;
+        // According to RFC, always respond positively here, but don't authenticate yet
+        socketOut.write(USER_ACCEPTED);
+    }
+
+    private void handlePass(String line) {
+        if (currentUser == null) {
+            socketOut.println("-ERR Send USER command first");
+            return;
+        }
+        
+        if (line.equals("")) {
+            socketOut.println("-ERR Missing password");
+            return;
+        }
+        if (isAuthenticated) {
+            socketOut.println("-ERR Already authenticated");
+            return;
+        }
+        // Check if user and password are correct. For simplicity, assume these methods exist.
+        if (Mailbox.isValidUser(currentUser)) {
+        	
+            // Initialize mailbox
+            currentMailbox = new Mailbox(currentUser);
+            try {
+            	currentMailbox.loadMessages(line);
+            }
+            catch(Mailbox.MailboxNotAuthenticatedException e) {
+            	socketOut.println("-ERR");
+            	return;
+            }
+            catch(Mailbox.MailboxLockedException e) {
+            	// Exclusive access, as required by RFC 1939
+            	socketOut.println("-ERR Maildrop already locked");
+            	return;
+            }
+            isAuthenticated = true;
+            socketOut.write(LOCKED_AND_READY);
+        } else {
+            socketOut.println("-ERR Invalid username or password");
+        }
+    }
+
+    private void handleQuit() {
+    	if (this.isAuthenticated) {
+    		this.currentMailbox.deleteMessagesTaggedForDeletion();
+    		// Unlock the maildrop before replying, so the client can log in again right away
+    		this.currentMailbox.close();
+    	}
+    	socketOut.write(SIGNING_OFF);
+    }
+
+
+    private void handleStat() throws IOException {
+        if (!isAuthenticated) {
+            socketOut.write(AUTHENTICATE_FIRST);
+            return;
+        }
+        int messageCount = currentMailbox.size(false); // false to exclude deleted messages
+        long totalSize = currentMailbox.getTotalUndeletedFileSize(false);
+        socketOut.print("+OK ").print(messageCount).print(' ').print(totalSize).println();
+    }
+
+    private void handleList(RequestLine line, int argument) throws IOException {
+        if (!isAuthenticated) {
+            socketOut.write(AUTHENTICATE_FIRST);
+            return;
+        }
+        if (argument == line.length()) {
+            // List all messages
+            int messageCount = currentMailbox.size(false); // Exclude deleted messages
+            long totalSize = currentMailbox.getTotalUndeletedFileSize(false);
+            socketOut.print("+OK ").print(messageCount).print(" messages (").print(totalSize).println(" octets)");
+            int count = currentMailbox.size(true);
+            for (int i = 1; i <= count; i++) {
+            	if (!currentMailbox.isDeleted(i)) {
+            		socketOut.print(i).print(' ').print(currentMailbox.getMessageSize(i)).println();
+            	}
+            }
+
+            socketOut.write(END);
+        } else {
+            // List specific message
+            try {
+                int msgNumber = parseMessageNumber(line, argument, line.length());
+                MailMessage message = currentMailbox.getMailMessage(msgNumber);
+                if (message.isDeleted()) {
+                    socketOut.print("-ERR Message ").print(msgNumber).println(" deleted");
+                } else {
+                    socketOut.print("+OK ").print(msgNumber).print(' ').print(message.getFileSize()).println();
+                }
+            } catch (IndexOutOfBoundsException e) {
+                socketOut.write(INVALID_NUMBER);
+            }
+        }
+    }
+
+    private void handleRetr(RequestLine line, int argument) throws IOException {
+        if (!isAuthenticated) {
+
+            socketOut.write(AUTHENTICATE_FIRST);
+            return;
+        }
+        if (argument == line.length()) {
+            socketOut.println("-ERR Invalid RETR usage");
+            return;
+        }
+        try {
+            int msgNumber = parseMessageNumber(line, argument, line.length());
+            if (msgNumber <= 0) {
+                socketOut.write(INVALID_NUMBER);
+                return;
+            }
+            MailMessage message = currentMailbox.getMailMessage(msgNumber);
+            if (message.isDeleted()) {
+                socketOut.print("-ERR Message ").print(msgNumber).println(" deleted");
+                return;
+            }
+            sendMessage(message, false, Long.MAX_VALUE);
+        } catch (IndexOutOfBoundsException e) {
+            socketOut.write(INVALID_NUMBER);
+        }
+    }
+
+    /**
+     * Sends a positive response followed by the start of a message and the termination line. Messages are stored in
+     * wire format (dot-stuffed, CRLF line endings), so the file content is sent as is, or decompressed as it is sent if
+     * the message is stored compressed.
+     *
+     * @param message The message to be sent.
+     * @param top     Whether the response is to TOP rather than to RETR.
+     * @param length  The maximum number of bytes to be sent from the start of the message.
+     */
+    private void sendMessage(MailMessage message, boolean top, long length) throws IOException {
+        if (message.isCompressed()) {
+            InputStream content = new TerminatedContent(message.openContent(), length);
+            writeMessageResponse(message, top);
+            connection.sendStream(content);
+            socketOut.write(END);
+            return;
+        }
+        FileChannel file = FileChannel.open(message.getFile().toPath(), StandardOpenOption.READ);
+        long offset = message.getContentOffset();
+        boolean endsWithNewLine;
+        try {
+            length = Math.min(length, Math.min(message.getFileSize(), file.size() - offset));
+            endsWithNewLine = length <= 0 || endsWithNewLine(file, offset + length);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        writeMessageResponse(message, top);
+        connection.sendFile(file, offset, Math.max(length, 0));
+        if (!endsWithNewLine)
+            socketOut.println();
+        socketOut.write(END);
+    }
+
+    /**
+     * Writes the positive response that precedes the content sent by {@link #sendMessage(MailMessage, boolean, long)}.
+     */
+    private void writeMessageResponse(MailMessage message, boolean top) {
+        if (top)
+            socketOut.write(TOP_FOLLOWS);
+        else
+            socketOut.print("+OK ").print(message.getFileSize()).println(" octets");
+    }
+
+    /**
+     * Checks if the content sent from a message file ends with a line terminator, so that the termination line is sent
+     * on a line of its own.
+     *
+     * @param end The position in the file following the last byte sent.
+     */
+    private boolean endsWithNewLine(FileChannel file, long end) throws IOException {
+        lastByte.clear();
+        return file.read(lastByte, end - 1) == 1 && lastByte.get(0) == '\n';
+    }
+
+    /**
+     * Stream over the start of a message's content, followed by a line terminator if the content does not end with one,
+     * so that the termination line is sent on a line of its own.
+     */
+    private static class TerminatedContent extends InputStream {
+
+        private static final byte[] CRLF = {'\r', '\n'};
+
+        private final InputStream in;
+        private long remaining;
+        private int lastByte = '\n';
+        private int terminatorPosition = 0;
+
+        TerminatedContent(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (remaining > 0) {
+                int read = in.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                    lastByte = b[off + read - 1];
+                    return read;
+                }
+                remaining = 0;
+            }
+            if (lastByte == '\n' || terminatorPosition == CRLF.length)
+                return -1;
+            int count = Math.min(len, CRLF.length - terminatorPosition);
+            System.arraycopy(CRLF, terminatorPosition, b, off, count);
+            terminatorPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private void handleDele(RequestLine line, int argument) throws IOException {
+        if (!isAuthenticated) {
+            socketOut.write(AUTHENTICATE_FIRST);
+            return;
+        }
+        if (argument == line.length()) {
+            socketOut.println("-ERR Invalid DELE usage");
+            return;
+        }
+        try {
+            int msgNumber = parseMessageNumber(line, argument, line.length());
+            MailMessage message = currentMailbox.getMailMessage(msgNumber);
+            if (message.isDeleted()) {
+                socketOut.print("-ERR Message ").print(msgNumber).println(" already deleted");
+            } else {
+                message.tagForDeletion();
+                socketOut.print("+OK Message ").print(msgNumber).println(" marked for deletion");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            socketOut.write(INVALID_NUMBER);
+        }
+    }
+
+    private void handleRset() throws IOException {
+        if (!isAuthenticated) {
+            socketOut.write(AUTHENTICATE_FIRST);
+            return;
+        }
+        currentMailbox.undeleteAll();
+
+        socketOut.write(OK);
+    }
+
+    private void handleNoop() throws IOException {
+        socketOut.write(OK);
+    }
+
+    private void handleTop(RequestLine line, int argument) throws IOException {
+        if (!isAuthenticated) {
+            socketOut.write(AUTHENTICATE_FIRST);
+            return;
+        }
+        int numberEnd = line.indexOf(' ', argument);
+        if (numberEnd == line.length() || line.indexOf(' ', numberEnd + 1) < line.length()) {
+            socketOut.println("-ERR Invalid TOP usage");
+            return;
+        }
+        try {
+            int msgNumber = parseMessageNumber(line, argument, numberEnd);
+            int lines = parseMessageNumber(line, numberEnd + 1, line.length());
+            if (msgNumber <= 0 || lines < 0) {
+                socketOut.write(INVALID_NUMBER);
+                return;
+            }
+            MailMessage message = currentMailbox.getMailMessage(msgNumber);
+            if (message.isDeleted()) {
+                socketOut.print("-ERR Message ").print(msgNumber).println(" deleted");
+                return;
+            }
+            long length = message.getTopLength(lines);
+            if (length < 0) {
+                // Not indexed, the headers and lines must be found in the file
+                socketOut.write(TOP_FOLLOWS);
+                sendTopLines(message, lines);
+                socketOut.write(END);
+                return;
+            }
+            sendMessage(message, true, length);
+        } catch (IndexOutOfBoundsException e) {
+            socketOut.write(INVALID_NUMBER);
+        }
+    }
+
+    /**
+     * Sends the headers and a number of body lines of a message that has no index, by reading the message content. The
+     * content is decoded as ISO-8859-1, which the writer encodes back to the same bytes.
+     */
+    private void sendTopLines(MailMessage message, int lines) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(message.openContent(),
+                StandardCharsets.ISO_8859_1))) {
+            String msgLine;
+            boolean inHeaders = true;
+            while ((inHeaders || lines-- > 0) && (msgLine = reader.readLine()) != null) {
+                socketOut.println(msgLine);
+                if (msgLine.isEmpty())
+                    inHeaders = false;
+            }
+        }
+    }
+
+    private void handleUidl(RequestLine line, int argument) throws IOException {
+        if (!isAuthenticated) {
+            socketOut.write(AUTHENTICATE_FIRST);
+            return;
+        }
+        if (argument == line.length()) {
+            socketOut.write(OK);
+            int i = 1;
+            for (MailMessage message : currentMailbox) {
+                if (!message.isDeleted())
+                    socketOut.print(i).print(' ').println(message.getUniqueId());
+                i++;
+            }
+            socketOut.write(END);
+            return;
+        }
+        try {
+            int msgNumber = parseMessageNumber(line, argument, line.length());
+            MailMessage message = currentMailbox.getMailMessage(msgNumber);
+            if (message.isDeleted()) {
+                socketOut.print("-ERR Message ").print(msgNumber).println(" deleted");
+            } else {
+                socketOut.print("+OK ").print(msgNumber).print(' ').println(message.getUniqueId());
+            }
+        } catch (IndexOutOfBoundsException e) {
+            socketOut.write(INVALID_NUMBER);
+        }
+    }
+
+    private void handleCapa() {
+        socketOut.write(tls ? CAPABILITIES_OVER_TLS : CAPABILITIES);
+    }
+
+    /**
+     * Handles STLS (RFC 2595), which is only allowed before the user is authenticated. Once the client is told to
+     * start the handshake, the connection is upgraded, and a user name sent before is forgotten, as the client must
+     * log in over TLS.
+     *
+     * @throws IOException If the upgrade fails.
+     */
+    private void handleStls() throws IOException {
+        if (tls || isAuthenticated) {
+            socketOut.write(TLS_NOT_ALLOWED);
+        } else if (!TlsContext.isEnabled()) {
+            socketOut.write(TLS_NOT_AVAILABLE);
+        } else {
+            socketOut.write(BEGIN_TLS);
+            connection.startTls();
+            tls = true;
+            currentUser = null;
+        }
+    }
+}
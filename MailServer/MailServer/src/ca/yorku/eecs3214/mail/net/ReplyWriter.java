@@ -0,0 +1,157 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writer of the responses sent to a client. Responses are encoded into a buffer, which is only written to the
+ * underlying stream when the writer is flushed, so the transport decides when responses are sent (e.g., once all
+ * pipelined commands were processed). Fixed responses are encoded once, when the session class is loaded, with
+ * {@link #reply(String...)}; variable responses are assembled from text and numbers with the print methods. Neither
+ * creates objects once the buffer has grown to the size of the largest response.
+ * <p>
+ * Lines are terminated with CRLF. Characters are written as ISO-8859-1, so content decoded with that charset is sent
+ * back unchanged.
+ */
+class ReplyWriter {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private OutputStream out;
+    private byte[] buffer = new byte[1024];
+    private int count = 0;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param out The stream where the responses are written when flushed.
+     */
+    ReplyWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Replaces the underlying stream, e.g., once the connection is upgraded to TLS. Responses that were not flushed are
+     * written to the new stream.
+     *
+     * @param out The stream where the responses are written from now on.
+     */
+    void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Encodes a fixed response.
+     *
+     * @param lines The lines of the response, without line terminators.
+     * @return The bytes of the response, each line terminated with CRLF.
+     */
+    static byte[] reply(String... lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines)
+            text.append(line).append("\r\n");
+        return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Writes a response encoded with {@link #reply(String...)}.
+     *
+     * @param reply The bytes of the response.
+     * @return This writer.
+     */
+    ReplyWriter write(byte[] reply) {
+        ensureCapacity(reply.length);
+        System.arraycopy(reply, 0, buffer, count, reply.length);
+        count += reply.length;
+        return this;
+    }
+
+    /**
+     * Writes text, without a line terminator.
+     *
+     * @param text The text. Characters outside ISO-8859-1 are written as '?'.
+     * @return This writer.
+     */
+    ReplyWriter print(String text) {
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            buffer[count++] = (byte) (c <= 0xff ? c : '?');
+        }
+        return this;
+    }
+
+    /**
+     * Writes a character, without a line terminator.
+     *
+     * @param c The character, in ISO-8859-1.
+     * @return This writer.
+     */
+    ReplyWriter print(char c) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) (c <= 0xff ? c : '?');
+        return this;
+    }
+
+    /**
+     * Writes a number in decimal, without a line terminator.
+     *
+     * @param value The number.
+     * @return This writer.
+     */
+    ReplyWriter print(long value) {
+        if (value == Long.MIN_VALUE)
+            return print(Long.toString(value));
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
+            digits++;
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+        return this;
+    }
+
+    /**
+     * Writes a line of text, followed by CRLF.
+     *
+     * @param line The line.
+     */
+    void println(String line) {
+        print(line).println();
+    }
+
+    /**
+     * Terminates the current line with CRLF.
+     */
+    void println() {
+        write(CRLF);
+    }
+
+    /**
+     * Writes the buffered responses to the underlying stream, and flushes it.
+     *
+     * @throws IOException If there is an error writing to the stream.
+     */
+    void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+
+    private void ensureCapacity(int len) {
+        if (buffer.length - count < len)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
+    }
+}
@@ -0,0 +1,243 @@
+package ca.yorku.eecs3214.mail.net;
+
+import java.nio.charset.Charset;
+
+/**
+ * A request line received from a client, held as raw bytes in a buffer that each connection reuses for all of its
+ * lines. Command verbs and keywords are matched against the bytes, ignoring case, and numbers are parsed from them
+ * directly, so processing a command does not create objects. Only arguments that a session keeps, such as addresses,
+ * are decoded into strings.
+ * <p>
+ * The buffer holds at most {@link #CAPACITY} bytes. The rest of a longer line is discarded as it is received, and the
+ * line is reported as too long (see {@link #isTooLong(int)}), so a client cannot make the server buffer an unbounded
+ * line.
+ */
+class RequestLine {
+
+    /**
+     * Number of bytes stored for a line: the longest line allowed by either protocol (a line of SMTP message content,
+     * 998 characters), followed by CR.
+     */
+    public static final int CAPACITY = 999;
+
+    private final byte[] bytes = new byte[CAPACITY];
+    private int length = 0;
+    private boolean truncated = false;
+
+    /**
+     * Creates a line holding the given text, for example to drive a session without a transport.
+     *
+     * @param text The text of the line, without the line terminator.
+     * @return The line.
+     */
+    static RequestLine of(String text) {
+        RequestLine line = new RequestLine();
+        byte[] encoded = text.getBytes(Charset.defaultCharset());
+        line.append(encoded, 0, encoded.length);
+        return line;
+    }
+
+    /**
+     * Empties the line, before the bytes of a new line are received.
+     */
+    void clear() {
+        length = 0;
+        truncated = false;
+    }
+
+    /**
+     * Adds received bytes to the line. Bytes beyond the capacity of the buffer are discarded.
+     *
+     * @param b   Array containing the received bytes
+     * @param off Offset of the first byte
+     * @param len Number of bytes, not including the line feed
+     */
+    void append(byte[] b, int off, int len) {
+        int stored = Math.min(len, CAPACITY - length);
+        System.arraycopy(b, off, bytes, length, stored);
+        length += stored;
+        if (stored < len)
+            truncated = true;
+    }
+
+    /**
+     * Marks the end of the line, once its line feed was received, removing the CR that precedes it.
+     */
+    void end() {
+        if (!truncated && length > 0 && bytes[length - 1] == '\r')
+            length--;
+    }
+
+    /**
+     * Returns the array holding the bytes of the line, starting at offset 0. The array is reused for the next line.
+     *
+     * @return The array.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the length of the line, without the line terminator.
+     *
+     * @return The number of bytes in the line, at most {@link #CAPACITY}.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Checks if the line exceeds a protocol's limit.
+     *
+     * @param maxLength The maximum length of the line, without the line terminator.
+     * @return true if the line is longer than the limit, including if part of it was discarded.
+     */
+    boolean isTooLong(int maxLength) {
+        return truncated || length > maxLength;
+    }
+
+    /**
+     * Checks if the line is empty or only contains spaces and tabs.
+     *
+     * @return true if the line has no other characters.
+     */
+    boolean isBlank() {
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the line is exactly the given text, such as the single period that ends a message.
+     *
+     * @param text The text, in ASCII.
+     * @return true if the line has the same characters, in the same case.
+     */
+    boolean is(String text) {
+        return length == text.length() && regionMatches(0, text, false);
+    }
+
+    /**
+     * Finds the command verb of the line, i.e., the characters up to the first space, among the constants of an enum
+     * named after the verbs. The verb is matched ignoring case.
+     *
+     * @param verbs The constants, whose names are the verbs in upper case.
+     * @param <E>   The enum type.
+     * @return The constant matching the verb, or null if the verb is not one of them.
+     */
+    <E extends Enum<E>> E getVerb(E[] verbs) {
+        int end = indexOf(' ', 0);
+        for (E verb : verbs) {
+            String name = verb.name();
+            if (name.length() == end && regionMatches(0, name, true))
+                return verb;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the position of the first argument, i.e., following the first space.
+     *
+     * @return The position, or the length of the line if it has no arguments.
+     */
+    int getArgumentStart() {
+        int space = indexOf(' ', 0);
+        return space < length ? space + 1 : length;
+    }
+
+    /**
+     * Finds the next occurrence of a character.
+     *
+     * @param c    The character, in ASCII.
+     * @param from The position where the search starts.
+     * @return The position of the character, or the length of the line if it is not found.
+     */
+    int indexOf(char c, int from) {
+        for (int i = from; i < length; i++) {
+            if (bytes[i] == c)
+                return i;
+        }
+        return length;
+    }
+
+    /**
+     * Returns a byte of the line.
+     *
+     * @param position The position of the byte.
+     * @return The byte.
+     */
+    byte byteAt(int position) {
+        return bytes[position];
+    }
+
+    /**
+     * Checks if the text appears at a position in the line.
+     *
+     * @param offset     The position of the text in the line.
+     * @param text       The text, in ASCII, and in upper case if the case is ignored.
+     * @param ignoreCase Whether letters of the line are matched regardless of their case.
+     * @return true if the line contains the text at the position.
+     */
+    boolean regionMatches(int offset, String text, boolean ignoreCase) {
+        if (offset + text.length() > length)
+            return false;
+        for (int i = 0; i < text.length(); i++) {
+            int b = bytes[offset + i];
+            if (ignoreCase && b >= 'a' && b <= 'z')
+                b -= 'a' - 'A';
+            if (b != text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a region of the line is exactly the given text, ignoring case.
+     *
+     * @param from The position of the first character of the region.
+     * @param to   The position following the last character of the region.
+     * @param text The text, in ASCII and in upper case.
+     * @return true if the region contains the same characters.
+     */
+    boolean regionEqualsIgnoreCase(int from, int to, String text) {
+        return to - from == text.length() && regionMatches(from, text, true);
+    }
+
+    /**
+     * Parses a non-negative decimal number.
+     *
+     * @param from The position of the first digit.
+     * @param to   The position following the last digit.
+     * @return The number, or -1 if the region is empty, contains anything other than digits, or overflows a long.
+     */
+    long parseNumber(int from, int to) {
+        if (from >= to)
+            return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+                return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes a region of the line, for an argument that is kept by the session.
+     *
+     * @param from The position of the first character of the region.
+     * @param to   The position following the last character of the region.
+     * @return The text of the region.
+     */
+    String toString(int from, int to) {
+        return new String(bytes, from, to - from, Charset.defaultCharset());
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, length);
+    }
+}
@@ -0,0 +1,561 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.mailbox.MailWriter;
+import ca.yorku.eecs3214.mail.mailbox.Mailbox;
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SMTP state machine for an individual client connection. Receives request lines from a transport (see
+ * {@link MySMTPServer} and {@link EventLoopServer}) and writes the corresponding responses to the client.
+ * <p>
+ * Supports command pipelining (RFC 2920): commands are processed in the order they are received, and responses are
+ * only written to the writer, so transports may send the responses to a group of commands together, once there is no
+ * more input waiting to be processed.
+ * <p>
+ * Commands are parsed from the bytes of the request line, and fixed responses, including those to HELO and EHLO, are
+ * encoded once, so processing a command only creates objects for the addresses it keeps and for the message itself.
+ */
+class SMTPSession implements LineSession {
+
+    /**
+     * Maximum size of a message, in bytes, configurable with the <code>mail.message.maxSize</code> system property. A
+     * value of 0 disables the limit.
+     */
+    public static final long MAX_MESSAGE_SIZE = Long.getLong("mail.message.maxSize", 50L * 1024 * 1024);
+
+    /**
+     * Maximum length of a command line, without CRLF (RFC 5321, section 4.5.3.1.4).
+     */
+    public static final int MAX_COMMAND_LINE = 510;
+
+    /**
+     * Maximum length of a line of message content, without CRLF (RFC 5321, section 4.5.3.1.6).
+     */
+    public static final int MAX_TEXT_LINE = 998;
+
+    /**
+     * ESMTP extensions advertised in the response to EHLO. STARTTLS is also advertised if TLS is enabled and was not
+     * started yet.
+     */
+    static final String[] EXTENSIONS = {"PIPELINING", "CHUNKING", "BINARYMIME", "SIZE " + MAX_MESSAGE_SIZE};
+
+    /**
+     * Name of the current host, used in the responses to HELO and EHLO. Looked up once, as the lookup may be slow.
+     */
+    static final String HOST_NAME = getHostName();
+
+    private static final byte[] GREETING = ReplyWriter.reply("220 Welcome to MySMTPServer");
+    private static final byte[] HELO_REPLY = ReplyWriter.reply("250 " + HOST_NAME);
+    private static final byte[] EHLO_REPLY = ehloReply(TlsContext.isEnabled());
+    private static final byte[] EHLO_REPLY_OVER_TLS = ehloReply(false);
+    private static final byte[] OK = ReplyWriter.reply("250 OK");
+    private static final byte[] OK_CODE = ReplyWriter.reply("250");
+    private static final byte[] BYE = ReplyWriter.reply("221 Bye");
+    private static final byte[] START_DATA = ReplyWriter.reply("354 End data with <CR><LF>.<CR><LF>");
+    private static final byte[] MESSAGE_RECEIVED = ReplyWriter.reply("250 OK: Message received");
+    private static final byte[] NO_SUCH_USER = ReplyWriter.reply("550 No such user here");
+    private static final byte[] USER_NOT_FOUND = ReplyWriter.reply("550");
+    private static final byte[] INSUFFICIENT_STORAGE =
+            ReplyWriter.reply("552 Requested mail action aborted: exceeded storage allocation");
+    private static final byte[] BAD_SEQUENCE = ReplyWriter.reply("503 Bad sequence of commands");
+    private static final byte[] BAD_SEQUENCE_CODE = ReplyWriter.reply("503");
+    private static final byte[] BINARYMIME_WITH_DATA = ReplyWriter.reply("503 BINARYMIME content must be sent with BDAT");
+    private static final byte[] SYNTAX_ERROR = ReplyWriter.reply("501 Syntax error in parameters or arguments");
+    private static final byte[] SYNTAX_ERROR_CODE = ReplyWriter.reply("501");
+    private static final byte[] NOT_IMPLEMENTED = ReplyWriter.reply("502 Command not implemented");
+    private static final byte[] LINE_TOO_LONG = ReplyWriter.reply("500 Line too long");
+    private static final byte[] SIZE_EXCEEDED = ReplyWriter.reply("552 Message size exceeds fixed maximum message size");
+    private static final byte[] LOCAL_ERROR = ReplyWriter.reply("451 Requested action aborted: local error in processing");
+    private static final byte[] READY_TO_START_TLS = ReplyWriter.reply("220 Ready to start TLS");
+    private static final byte[] TLS_NOT_AVAILABLE = ReplyWriter.reply("454 TLS not available due to temporary reason");
+    private static final byte[] TIMEOUT = ReplyWriter.reply("421 Timeout waiting for client input, closing connection");
+
+    /**
+     * The commands supported by the session, named after their verbs.
+     */
+    private enum Command {
+        HELO, EHLO, MAIL, RCPT, DATA, BDAT, RSET, VRFY, NOOP, QUIT, STARTTLS
+    }
+
+    private static final Command[] COMMANDS = Command.values();
+
+    private final ClientConnection connection;
+    private final ReplyWriter socketOut;
+
+    Mailbox mail;
+    boolean flag = false;
+    List<Mailbox> recipients = new ArrayList<Mailbox>();
+    String emailAddress;
+    MailWriter dataWriter = null;
+    boolean receivingData = false;
+    byte[] dataError = null;
+    long dataSize = 0;
+    boolean binaryMime = false;
+    long declaredSize = 0;
+    long chunkRemaining = 0;
+    boolean chunkLast = false;
+    long chunkedSize = 0;
+    byte[] chunkError = null;
+    boolean tls = false;
+
+    /**
+     * Creates the state machine for a new client connection.
+     *
+     * @param connection The connection used to send responses to the client.
+     */
+    SMTPSession(ClientConnection connection) {
+        this.connection = connection;
+        this.socketOut = connection.getWriter();
+    }
+
+    @Override
+    public void open() {
+        Metrics.SMTP.sessionOpened();
+        socketOut.write(GREETING);
+    }
+
+    /**
+     * Processes a request line, recording the time taken by each command, and by the end of each message's content
+     * (see {@link Metrics#SMTP}).
+     */
+    @Override
+    public boolean handleLine(RequestLine line) throws IOException {
+        if (receivingData && !line.is("."))
+            return handleDataLine(line);
+        String verb;
+        Command command = null;
+        if (receivingData) {
+            verb = Metrics.SMTP_END_OF_DATA;
+        } else {
+            command = line.isTooLong(MAX_COMMAND_LINE) ? null : line.getVerb(COMMANDS);
+            verb = command != null ? command.name() : ProtocolMetrics.UNKNOWN_VERB;
+        }
+        long start = System.nanoTime();
+        try {
+            return receivingData ? handleDataLine(line) : processCommand(command, line);
+        } finally {
+            Metrics.SMTP.recordCommand(verb, System.nanoTime() - start);
+        }
+    }
+
+    private boolean processCommand(Command command, RequestLine line) throws IOException {
+        if (command == null) {
+            socketOut.write(line.isTooLong(MAX_COMMAND_LINE) ? LINE_TOO_LONG : NOT_IMPLEMENTED);
+            return true;
+        }
+        // Each argument starts after a single space, as when splitting the line on spaces
+        int argument = line.getArgumentStart();
+        int argumentEnd = line.indexOf(' ', argument);
+        boolean hasArgument = argument < line.length();
+        switch (command) {
+            case NOOP:
+                socketOut.write(OK);
+                break;
+            case QUIT:
+                socketOut.write(BYE);
+                return false; // Close the connection
+            case VRFY:
+                if (!hasArgument) { //invalid arguments
+                    socketOut.write(SYNTAX_ERROR_CODE);
+                } else if (Mailbox.isValidUser(line.toString(argument, argumentEnd))) { //valid
+                    socketOut.write(OK_CODE);
+                } else { //user not found
+                    socketOut.write(USER_NOT_FOUND);
+                }
+                break;
+            case EHLO:
+                socketOut.write(tls ? EHLO_REPLY_OVER_TLS : EHLO_REPLY);
+                flag = true;
+                break;
+            case HELO:
+                socketOut.write(HELO_REPLY);
+                flag = true;
+                break;
+            case MAIL:
+                handleMail(line, argument, argumentEnd);
+                break;
+            case RCPT:
+                handleRcpt(line, argument, argumentEnd);
+                break;
+            case DATA:
+                handleData();
+                break;
+            case BDAT:
+                handleBdat(line, argument);
+                break;
+            case RSET:
+                resetTransaction();
+                socketOut.write(OK_CODE);
+                break;
+            case STARTTLS:
+                handleStartTls(hasArgument);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Processes the MAIL command, whose first argument is the sender's address, and which may be followed by the SIZE
+     * (RFC 1870) and BODY (RFC 3030) parameters.
+     *
+     * @param line     The request line.
+     * @param from     The position of the first argument.
+     * @param fromEnd  The position following the first argument.
+     */
+    private void handleMail(RequestLine line, int from, int fromEnd) {
+        if (!flag || dataWriter != null) { // EHLO or HELO not called, or BDAT transfer in progress
+            socketOut.write(BAD_SEQUENCE);
+            return;
+        }
+        if (fromEnd - from < 7 || !line.regionMatches(from, "FROM:<", true) || line.byteAt(fromEnd - 1) != '>') {
+            socketOut.write(SYNTAX_ERROR);
+            return;
+        }
+        // Extract the email address from the command
+        emailAddress = line.toString(from + 6, fromEnd - 1); // Removes FROM:< at the start and > at the end
+        binaryMime = false;
+        declaredSize = 0;
+        resetChunking();
+        // Reset or prepare for new message handling if necessary
+        this.recipients.clear(); // Reset the recipients list for each new MAIL command
+        for (int end = fromEnd; end < line.length(); ) {
+            int start = end + 1;
+            end = line.indexOf(' ', start);
+            if (line.regionEqualsIgnoreCase(start, end, "BODY=BINARYMIME"))
+                binaryMime = true;
+            else if (line.regionMatches(start, "SIZE=", true))
+                declaredSize = line.parseNumber(start + 5, end);
+        }
+        if (declaredSize < 0) {
+            emailAddress = null;
+            socketOut.write(SYNTAX_ERROR);
+            return;
+        }
+        if (MAX_MESSAGE_SIZE > 0 && declaredSize > MAX_MESSAGE_SIZE) {
+            // Rejected before any content is transferred (RFC 1870)
+            emailAddress = null;
+            socketOut.write(SIZE_EXCEEDED);
+            return;
+        }
+        socketOut.write(OK);
+    }
+
+    /**
+     * Processes the RCPT command, whose argument is the address of a recipient.
+     *
+     * @param line  The request line.
+     * @param to    The position of the argument.
+     * @param toEnd The position following the argument.
+     */
+    private void handleRcpt(RequestLine line, int to, int toEnd) {
+        if (!flag || this.emailAddress == null) { // EHLO or HELO not called
+            socketOut.write(BAD_SEQUENCE);
+            return;
+        }
+        if (toEnd - to < 5 || !line.regionMatches(to, "TO:<", true) || line.byteAt(toEnd - 1) != '>') {
+            socketOut.write(SYNTAX_ERROR);
+            return;
+        }
+        // Extract the email address from the command
+        String emailAddress = line.toString(to + 4, toEnd - 1); // Removes TO:< at the start and > at the end
+        if (!Mailbox.isValidUser(emailAddress)) {
+            socketOut.write(NO_SUCH_USER);
+            return;
+        }
+        Mailbox recipientMailbox = new Mailbox(emailAddress);
+        if (!recipientMailbox.hasRoomFor(declaredSize)) {
+            socketOut.write(INSUFFICIENT_STORAGE);
+            return;
+        }
+        recipients.add(recipientMailbox); // Add to the list of recipient Mailbox objects
+        socketOut.write(OK);
+    }
+
+    /**
+     * Handles STARTTLS (RFC 3207). Once the client is told to start the handshake, the connection is upgraded, and the
+     * session returns to its initial state, as the client must identify itself again over TLS.
+     *
+     * @param hasArgument Whether the command has an argument, which is not allowed.
+     * @throws IOException If the upgrade fails.
+     */
+    private void handleStartTls(boolean hasArgument) throws IOException {
+        if (hasArgument) {
+            socketOut.write(SYNTAX_ERROR);
+        } else if (tls) {
+            socketOut.write(BAD_SEQUENCE);
+        } else if (!TlsContext.isEnabled()) {
+            socketOut.write(TLS_NOT_AVAILABLE);
+        } else {
+            socketOut.write(READY_TO_START_TLS);
+            connection.startTls();
+            tls = true;
+            flag = false;
+            resetTransaction();
+        }
+    }
+
+    /**
+     * Discards the sender, the recipients and any partially received message (RSET).
+     */
+    private void resetTransaction() {
+        this.mail = null;
+        this.recipients.clear();
+        this.emailAddress = null;
+        this.binaryMime = false;
+        this.declaredSize = 0;
+        resetChunking();
+    }
+
+    /**
+     * Processes the DATA command, after which the lines of the message are received by
+     * {@link #handleDataLine(RequestLine)}.
+     */
+    private void handleData() {
+        if (recipients.isEmpty() || dataWriter != null) {
+            socketOut.write(BAD_SEQUENCE_CODE);
+            return;
+        }
+        if (binaryMime) {
+            socketOut.write(BINARYMIME_WITH_DATA);
+            return;
+        }
+        try {
+            dataWriter = new MailWriter(recipients);
+        } catch (IOException e) {
+            e.printStackTrace();
+            socketOut.write(LOCAL_ERROR);
+            return;
+        }
+        receivingData = true;
+        dataError = null;
+        dataSize = 0;
+        socketOut.write(START_DATA);
+    }
+
+    /**
+     * Processes a line received after the DATA command, until the line containing a single dot is received. Each line
+     * is written to the recipients' mailboxes as soon as it arrives, so the message is never held in memory as a
+     * whole. Lines are stored in wire format, i.e., still dot-stuffed and terminated by CRLF, so that the POP3 server
+     * can send the message files without transforming them. If saving the message fails, or the message exceeds the
+     * maximum size, the remaining lines are still consumed, and the failure is reported once the message is complete.
+     * A line longer than allowed by RFC 5321 causes the message to be rejected in the same way.
+     *
+     * @param line The line received from the client.
+     * @return true if the session should continue, or false if the connection must be closed.
+     */
+    private boolean handleDataLine(RequestLine line) {
+        if (!line.is(".")) {
+            if (dataError != null)
+                return true;
+            dataSize += line.length() + 2;
+            if (line.isTooLong(MAX_TEXT_LINE)) {
+                dataError = LINE_TOO_LONG;
+                dataWriter.discard();
+                return true;
+            }
+            if (MAX_MESSAGE_SIZE > 0 && dataSize > MAX_MESSAGE_SIZE) {
+                dataError = SIZE_EXCEEDED;
+                dataWriter.discard();
+                return true;
+            }
+            try {
+                dataWriter.writeLine(line.getBytes(), 0, line.length());
+            } catch (IOException e) {
+                e.printStackTrace();
+                dataError = LOCAL_ERROR;
+                dataWriter.discard();
+            }
+            return true;
+        }
+
+        MailWriter writer = this.dataWriter;
+        this.dataWriter = null;
+        this.receivingData = false;
+        if (dataError != null) {
+            socketOut.write(dataError);
+            return true;
+        }
+
+        connection.completeMessage(writer, error -> {
+            if (error != null) {
+                error.printStackTrace();
+                socketOut.write(LOCAL_ERROR);
+            } else {
+                socketOut.write(MESSAGE_RECEIVED);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Processes the BDAT command (RFC 3030), which announces a chunk of the message with a specified size. The chunk
+     * itself is received with {@link #handleChunk(byte[], int, int)}. The chunk is always consumed, even if the command
+     * is rejected, so that its content is not processed as commands. Only a command whose size cannot be parsed is
+     * rejected immediately, as the length of its chunk is then unknown.
+     *
+     * @param line     The request line.
+     * @param argument The position of the first argument, the size of the chunk.
+     */
+    private void handleBdat(RequestLine line, int argument) {
+        int sizeEnd = line.indexOf(' ', argument);
+        long size = line.parseNumber(argument, sizeEnd);
+        int last = sizeEnd + 1;
+        if (size < 0) {
+            socketOut.write(SYNTAX_ERROR);
+            return;
+        }
+        boolean hasLast = last < line.length() && line.regionEqualsIgnoreCase(last, line.indexOf(' ', last), "LAST");
+        boolean syntaxError = (last < line.length() && !hasLast) || line.indexOf(' ', last) < line.length();
+        chunkRemaining = size;
+        chunkLast = hasLast;
+        chunkedSize += size;
+
+        if (chunkError == null) {
+            if (syntaxError) {
+                chunkError = SYNTAX_ERROR;
+            } else if (!flag || this.emailAddress == null || recipients.isEmpty()) {
+                chunkError = BAD_SEQUENCE;
+            } else if (MAX_MESSAGE_SIZE > 0 && chunkedSize > MAX_MESSAGE_SIZE) {
+                chunkError = SIZE_EXCEEDED;
+            } else if (dataWriter == null) {
+                try {
+                    dataWriter = new MailWriter(recipients);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    chunkError = LOCAL_ERROR;
+                }
+            }
+        }
+        if (chunkRemaining == 0)
+            completeChunk();
+    }
+
+    @Override
+    public long getChunkRemaining() {
+        return chunkRemaining;
+    }
+
+    /**
+     * Writes the bytes of a BDAT chunk directly to the recipients' mailboxes, without processing them as lines.
+     */
+    @Override
+    public boolean handleChunk(byte[] buffer, int offset, int length) {
+        chunkRemaining -= length;
+        if (chunkError == null) {
+            try {
+                dataWriter.writeBinary(buffer, offset, length);
+            } catch (IOException e) {
+                e.printStackTrace();
+                chunkError = LOCAL_ERROR;
+            }
+        }
+        if (chunkRemaining == 0)
+            completeChunk();
+        return true;
+    }
+
+    /**
+     * Sends the response to a BDAT command once its chunk was received, and completes the message if it was the last
+     * chunk. After a failed chunk, all remaining chunks of the message are rejected with the same error.
+     */
+    private void completeChunk() {
+        if (chunkError != null) {
+            socketOut.write(chunkError);
+            if (dataWriter != null) {
+                dataWriter.discard();
+                dataWriter = null;
+            }
+            if (chunkLast)
+                resetChunking();
+            return;
+        }
+        if (!chunkLast) {
+            socketOut.print("250 ").print(chunkedSize).println(" octets received");
+            return;
+        }
+        MailWriter writer = dataWriter;
+        long size = chunkedSize;
+        dataWriter = null;
+        resetChunking();
+        connection.completeMessage(writer, error -> {
+            if (error != null) {
+                error.printStackTrace();
+                socketOut.write(LOCAL_ERROR);
+            } else {
+                socketOut.print("250 OK: Message received, ").print(size).println(" octets");
+            }
+        });
+    }
+
+    /**
+     * Abandons the message being received with BDAT, if any.
+     */
+    private void resetChunking() {
+        if (dataWriter != null) {
+            dataWriter.discard();
+            dataWriter = null;
+        }
+        chunkLast = false;
+        chunkedSize = 0;
+        chunkError = null;
+    }
+
+    /**
+     * Tells the client the connection is being closed (RFC 5321, section 3.8). Any partially received message is
+     * discarded when the session is closed.
+     */
+    @Override
+    public void timedOut() {
+        socketOut.write(TIMEOUT);
+    }
+
+    @Override
+    public void close() {
+        Metrics.SMTP.sessionClosed();
+        // A message that was not completely received must not be delivered
+        if (dataWriter != null) {
+            dataWriter.discard();
+            dataWriter = null;
+        }
+    }
+
+    /**
+     * Encodes the response to EHLO, which lists the supported extensions.
+     *
+     * @return The bytes of the response.
+     */
+    private static byte[] ehloReply(boolean offerTls) {
+        List<String> extensions = new ArrayList<>(List.of(EXTENSIONS));
+        if (offerTls)
+            extensions.add("STARTTLS");
+        String[] lines = new String[extensions.size() + 1];
+        lines[0] = "250-" + HOST_NAME;
+        for (int i = 0; i < extensions.size(); i++)
+            lines[i + 1] = (i < extensions.size() - 1 ? "250-" : "250 ") + extensions.get(i);
+        return ReplyWriter.reply(lines);
+    }
+
+    /**
+     * Retrieves the name of the current host. Used in the response of commands like HELO and EHLO.
+     * @return A string corresponding to the name of the current host.
+     */
+    static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            try (BufferedReader reader = Runtime.getRuntime().exec(new String[] {"hostname"}).inputReader()) {
+                return reader.readLine();
+            } catch (IOException ex) {
+                return "unknown_host";
+            }
+        }
+    }
+}
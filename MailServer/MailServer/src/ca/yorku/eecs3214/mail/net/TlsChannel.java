@@ -0,0 +1,219 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * TLS layer of a non-blocking connection of the {@link EventLoopServer}, once it was upgraded with STARTTLS or STLS.
+ * Bytes received from the socket are decrypted, and bytes written to this channel are encrypted, by an
+ * {@link SSLEngine}. Neither operation blocks: the handshake progresses whenever the client's messages are received
+ * and the server's messages can be sent, and its delegated tasks run on the event loop thread.
+ * <p>
+ * Like the socket channel it wraps, this channel may accept fewer bytes than requested; encrypted bytes that the socket
+ * did not accept are sent by {@link #flush()}, which must return true before the output is considered sent.
+ */
+class TlsChannel implements WritableByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    /** Encrypted bytes received, in write mode. */
+    private ByteBuffer netIn;
+    /** Decrypted bytes not yet read, in read mode. */
+    private final ByteBuffer appIn;
+    /** Encrypted bytes not yet sent, in read mode. */
+    private final ByteBuffer netOut;
+    private boolean incomplete = false;
+    private boolean handshaking = true;
+
+    /**
+     * Starts TLS over a connection. The server's first handshake message is only sent once the client's is received.
+     *
+     * @param channel The socket channel of the connection, in non-blocking mode.
+     * @param engine  The engine, in server mode.
+     * @throws IOException If the handshake cannot be started.
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * Reads decrypted bytes. Bytes already received are decrypted first; the socket is read at most once, and only if
+     * they do not hold a complete record.
+     *
+     * @param dst The buffer where the bytes are stored.
+     * @return The number of bytes read, possibly 0, or -1 if the client closed the connection.
+     * @throws IOException If there is an error reading from the socket or decrypting the bytes.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        boolean received = false;
+        while (!appIn.hasRemaining()) {
+            if (incomplete || netIn.position() == 0) {
+                if (received)
+                    return 0;
+                int read = channel.read(netIn);
+                if (read < 0)
+                    return -1;
+                if (read == 0)
+                    return 0;
+                received = true;
+                incomplete = false;
+            }
+            SSLEngineResult result = unwrap();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                return -1;
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                throw new SSLException("Record larger than the application buffer");
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                incomplete = true;
+                if (!netIn.hasRemaining())
+                    netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize()).put(netIn.flip());
+            }
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP && !flush())
+                return 0;
+            if (result.getStatus() == SSLEngineResult.Status.OK && result.bytesConsumed() == 0)
+                return 0;
+        }
+        int length = Math.min(dst.remaining(), appIn.remaining());
+        int limit = appIn.limit();
+        dst.put(appIn.limit(appIn.position() + length));
+        appIn.limit(limit);
+        return length;
+    }
+
+    /**
+     * Checks if bytes were received that can be read without reading from the socket.
+     *
+     * @return true if decrypted bytes, or a complete record that was not decrypted, are buffered.
+     */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || (netIn.position() > 0 && !incomplete);
+    }
+
+    /**
+     * Checks if the handshake cannot progress until more bytes are received from the client.
+     *
+     * @return true if the engine is waiting for a handshake message from the client.
+     */
+    boolean isWaitingForInput() {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+    }
+
+    /**
+     * Encrypts as many bytes as the socket accepts. Bytes cannot be written until the handshake is complete.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = 0;
+        while (src.hasRemaining() && flush()) {
+            SSLEngineResult result = wrap(src);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new SSLException("TLS connection was closed");
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                break;
+            written += result.bytesConsumed();
+        }
+        return written;
+    }
+
+    /**
+     * Sends encrypted bytes that the socket did not accept yet, and any handshake messages the engine has to send.
+     *
+     * @return true if all of them were sent, or false if the socket does not accept more bytes.
+     * @throws IOException If there is an error writing to the socket or producing the handshake messages.
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0)
+                    return false;
+            }
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                return true;
+            if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.CLOSED && !netOut.hasRemaining())
+                return true;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends the close_notify alert if the socket accepts it without blocking. The socket channel is not closed.
+     */
+    @Override
+    public void close() {
+        engine.closeOutbound();
+        try {
+            flush();
+        } catch (IOException e) {
+            // The connection is closed anyway
+        }
+    }
+
+    private SSLEngineResult unwrap() throws IOException {
+        netIn.flip();
+        appIn.compact();
+        try {
+            return completed(engine.unwrap(netIn, appIn));
+        } catch (SSLException e) {
+            failed();
+            throw e;
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        netOut.compact();
+        try {
+            return completed(engine.wrap(src, netOut));
+        } catch (SSLException e) {
+            failed();
+            throw e;
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    /**
+     * Runs the delegated tasks of the handshake, and records the handshake once it is complete.
+     */
+    private SSLEngineResult completed(SSLEngineResult result) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+        if (handshaking && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaking = false;
+            TlsContext.handshakeCompleted(engine.getSession(), startMillis, startNanos);
+        }
+        return result;
+    }
+
+    private void failed() {
+        if (handshaking) {
+            handshaking = false;
+            Metrics.TLS.handshakeFailed();
+        }
+    }
+}
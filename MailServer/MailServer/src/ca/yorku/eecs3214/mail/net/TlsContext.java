@@ -0,0 +1,158 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.Metrics;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS configuration shared by both servers, used to upgrade a connection when the client sends STARTTLS (SMTP,
+ * RFC 3207) or STLS (POP3, RFC 2595). TLS is only offered if a keystore holding the server's key and certificate is
+ * configured; otherwise both commands are rejected.
+ * <p>
+ * Clients that reconnect regularly, such as POP3 clients polling every minute, resume their previous session with an
+ * abbreviated handshake, which skips the certificate exchange and the expensive key agreement. The session is resumed
+ * either from a session ticket (RFC 5077 and RFC 8446), which the client presents and which the server does not need
+ * to store, or, for clients without ticket support, from the server's session cache.
+ */
+final class TlsContext {
+
+    /**
+     * Path of the keystore, configurable with the <code>mail.tls.keystore</code> system property. TLS is disabled if
+     * it is not set.
+     */
+    public static final String KEYSTORE = System.getProperty("mail.tls.keystore");
+
+    /**
+     * Password of the keystore and of its key, configurable with the <code>mail.tls.keystorePassword</code> system
+     * property.
+     */
+    public static final String KEYSTORE_PASSWORD = System.getProperty("mail.tls.keystorePassword", "");
+
+    /**
+     * Type of the keystore (e.g., PKCS12 or JKS), configurable with the <code>mail.tls.keystoreType</code> system
+     * property.
+     */
+    public static final String KEYSTORE_TYPE = System.getProperty("mail.tls.keystoreType", KeyStore.getDefaultType());
+
+    /**
+     * Maximum number of sessions kept in the server's session cache, configurable with the
+     * <code>mail.tls.sessionCacheSize</code> system property. Each client without ticket support occupies one entry
+     * while its session is valid, so the cache should hold at least as many sessions as there are such clients.
+     */
+    public static final int SESSION_CACHE_SIZE = Integer.getInteger("mail.tls.sessionCacheSize", 10000);
+
+    /**
+     * Time in seconds after which a session can no longer be resumed, from the cache or from a ticket, configurable
+     * with the <code>mail.tls.sessionTimeout</code> system property. Must be longer than the interval between the
+     * connections of a polling client for its sessions to be resumed.
+     */
+    public static final int SESSION_TIMEOUT = Integer.getInteger("mail.tls.sessionTimeout", 3600);
+
+    /**
+     * Whether session tickets are issued, so that sessions are resumed without being stored by the server,
+     * configurable with the <code>mail.tls.sessionTickets</code> system property.
+     */
+    public static final boolean SESSION_TICKETS = Boolean.parseBoolean(
+            System.getProperty("mail.tls.sessionTickets", "true"));
+
+    private static final SSLContext CONTEXT = createContext();
+
+    private TlsContext() {
+    }
+
+    /**
+     * Checks if TLS can be offered to clients.
+     *
+     * @return true if a keystore is configured and was loaded successfully.
+     */
+    static boolean isEnabled() {
+        return CONTEXT != null;
+    }
+
+    /**
+     * Layers TLS over a connected socket, in server mode, and performs the handshake.
+     *
+     * @param socket The socket of the connection, whose pending responses were already sent.
+     * @return The TLS socket, through which all further content must be read and written.
+     * @throws IOException If TLS is not enabled, or if the handshake fails.
+     */
+    static SSLSocket startHandshake(Socket socket) throws IOException {
+        if (CONTEXT == null)
+            throw new IOException("TLS is not enabled");
+        SSLSocket tlsSocket = (SSLSocket) CONTEXT.getSocketFactory().createSocket(socket,
+                socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        tlsSocket.setUseClientMode(false);
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        try {
+            tlsSocket.startHandshake();
+        } catch (IOException e) {
+            Metrics.TLS.handshakeFailed();
+            throw e;
+        }
+        handshakeCompleted(tlsSocket.getSession(), startMillis, startNanos);
+        return tlsSocket;
+    }
+
+    /**
+     * Creates an engine to perform TLS over a non-blocking connection, in server mode.
+     *
+     * @return The engine, whose handshake has not started.
+     * @throws IOException If TLS is not enabled.
+     */
+    static SSLEngine createEngine() throws IOException {
+        if (CONTEXT == null)
+            throw new IOException("TLS is not enabled");
+        SSLEngine engine = CONTEXT.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Records a successful handshake in the metrics. A resumed session keeps the creation time of the session it
+     * resumes, so the handshake resumed a session if the session was created before the handshake started.
+     *
+     * @param session     The session negotiated or resumed by the handshake.
+     * @param startMillis The time the handshake started, as returned by {@link System#currentTimeMillis()}.
+     * @param startNanos  The time the handshake started, as returned by {@link System#nanoTime()}.
+     */
+    static void handshakeCompleted(SSLSession session, long startMillis, long startNanos) {
+        Metrics.TLS.handshakeCompleted(session.getCreationTime() < startMillis, System.nanoTime() - startNanos);
+    }
+
+    private static SSLContext createContext() {
+        if (KEYSTORE == null)
+            return null;
+        // Read by the JDK when the context is initialized; an explicit setting of the JDK property takes precedence
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(SESSION_TICKETS));
+        try (InputStream in = Files.newInputStream(Path.of(KEYSTORE))) {
+            char[] password = KEYSTORE_PASSWORD.toCharArray();
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Error loading the TLS keystore, TLS is disabled: " + e);
+            return null;
+        }
+    }
+}
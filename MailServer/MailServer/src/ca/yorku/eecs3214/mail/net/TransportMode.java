@@ -0,0 +1,45 @@
+package ca.yorku.eecs3214.mail.net;
+
+/**
+ * The ways in which a server can run its client sessions, selected at startup by the optional second command-line
+ * argument.
+ */
+enum TransportMode {
+
+    /**
+     * One platform thread per connection, blocking on each read.
+     */
+    BLOCKING,
+
+    /**
+     * Non-blocking sockets multiplexed over a small, fixed set of event loop threads (see {@link EventLoopServer}).
+     */
+    NIO,
+
+    /**
+     * One virtual thread per connection, with a cap on concurrent sessions (see {@link VirtualThreadServer}).
+     */
+    VIRTUAL;
+
+    /**
+     * Parses the command-line arguments shared by both servers: the listening port, optionally followed by the name
+     * of the transport mode.
+     *
+     * @param args The command-line arguments.
+     * @return The selected transport mode, or BLOCKING if none was given.
+     * @throws RuntimeException If the arguments are missing or the mode is unknown.
+     */
+    static TransportMode fromArguments(String[] args) {
+        if (args.length != 1 && args.length != 2) {
+            throw new RuntimeException("This application must be executed with the listening port as its first " +
+                    "argument, optionally followed by the transport mode (blocking, nio or virtual).");
+        }
+        if (args.length == 1)
+            return BLOCKING;
+        for (TransportMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(args[1]))
+                return mode;
+        }
+        throw new RuntimeException("Unknown transport mode: " + args[1]);
+    }
+}
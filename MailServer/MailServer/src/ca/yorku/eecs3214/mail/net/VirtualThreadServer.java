@@ -0,0 +1,137 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Transport that runs each client's blocking handler on its own virtual thread, with a cap on the number of concurrent
+ * sessions, and on the number of concurrent sessions from each client address (see {@link ConnectionLimiter}).
+ * Connections accepted while the server is at capacity receive an immediate "service unavailable" response and are
+ * closed, instead of waiting for a session to finish.
+ */
+class VirtualThreadServer {
+
+    /**
+     * Maximum number of concurrent sessions, configurable with the <code>mail.sessions.max</code> system property.
+     */
+    public static final int MAX_SESSIONS = Integer.getInteger("mail.sessions.max", 10000);
+
+    /**
+     * Length of the queue of connections not yet accepted by the server, configurable with the
+     * <code>mail.accept.backlog</code> system property.
+     */
+    public static final int ACCEPT_BACKLOG = Integer.getInteger("mail.accept.backlog", 1024);
+
+    private final int port;
+    private final HandlerFactory handlerFactory;
+    private final ProtocolMetrics metrics;
+    private final ConnectionLimiter limiter;
+    private final WriteWatchdog watchdog;
+
+    /**
+     * Creates a new virtual thread server.
+     *
+     * @param port           The listening port.
+     * @param handlerFactory Function that creates the blocking handler for an accepted connection.
+     * @param metrics        The metrics where rejected connections are counted.
+     * @param busyResponse   The response line sent to clients rejected because the server is at capacity.
+     */
+    VirtualThreadServer(int port, HandlerFactory handlerFactory, ProtocolMetrics metrics, String busyResponse) {
+        this.port = port;
+        this.handlerFactory = handlerFactory;
+        this.metrics = metrics;
+        this.limiter = new ConnectionLimiter(metrics, busyResponse);
+        this.watchdog = new WriteWatchdog(metrics);
+    }
+
+    /**
+     * Repeatedly accepts new connections and runs their handlers. Only returns in case of an exception.
+     *
+     * @throws IOException In case of an exception creating the server socket or accepting new connections.
+     */
+    void serve() throws IOException {
+        Semaphore sessions = new Semaphore(MAX_SESSIONS);
+        ExecutorService executor = newSessionExecutor();
+        // Sockets accepted from a channel allow messages to be sent directly from the files (see BlockingConnection)
+        try (ServerSocket serverSocket = ServerSocketChannel.open().socket()) {
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            watchdog.configure(serverSocket);
+            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + " (at most " +
+                    MAX_SESSIONS + " sessions)...");
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                watchdog.check();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (!sessions.tryAcquire()) {
+                    System.out.println("Rejected a connection from " + socket.getRemoteSocketAddress());
+                    metrics.connectionRejectedAtCapacity();
+                    limiter.reject(socket);
+                    continue;
+                }
+                if (!limiter.admit(socket)) {
+                    sessions.release();
+                    continue;
+                }
+                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
+                try {
+                    Runnable handler = handlerFactory.create(socket, watchdog);
+                    executor.execute(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            limiter.release(socket);
+                            sessions.release();
+                        }
+                    });
+                } catch (IOException | RejectedExecutionException e) {
+                    limiter.release(socket);
+                    sessions.release();
+                    System.err.println("Error setting up an individual client's handler.");
+                    e.printStackTrace();
+                    limiter.reject(socket);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each session. Virtual threads are only available from
+     * Java 21, so on older runtimes this falls back to platform threads, which are still bounded by MAX_SESSIONS.
+     *
+     * @return An executor that runs each submitted task on a new thread.
+     */
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not supported by this Java runtime, using platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Creates the blocking handler responsible for an accepted connection.
+     */
+    @FunctionalInterface
+    interface HandlerFactory {
+        Runnable create(Socket socket, WriteWatchdog watchdog) throws IOException;
+    }
+}
@@ -0,0 +1,146 @@
+package ca.yorku.eecs3214.mail.net;
+
+import ca.yorku.eecs3214.mail.metrics.ProtocolMetrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deadlines for sending responses on blocking connections. Unlike reads, blocking writes cannot time out, so a client
+ * that stops reading a long response (e.g., a RETR) would otherwise hold its handler thread forever, past even the
+ * session timeout. While a handler thread writes to its client, the connection is registered here, and the accepting
+ * thread of the server periodically closes the sockets of the connections whose deadline passed, which makes the
+ * blocked write fail. Each server has its own watchdog, which only tracks the connections it accepted.
+ * <p>
+ * Each write must complete within the idle timeout (see {@link ClientDeadline#IDLE_TIMEOUT}), so a client reading
+ * slowly is not disconnected as long as every write progresses, as with the event loops.
+ */
+class WriteWatchdog {
+
+    /**
+     * Interval, in milliseconds, between checks of the connections being written to. Also used as the timeout of the
+     * server socket, so that the accepting thread performs the checks when no connection arrives.
+     */
+    static final int CHECK_INTERVAL = 1000;
+
+    private final Map<Socket, ClientDeadline> writing = new ConcurrentHashMap<>();
+    private final ProtocolMetrics metrics;
+    private long lastCheck = System.nanoTime();
+
+    /**
+     * Creates the watchdog of a server.
+     *
+     * @param metrics The metrics where the connections closed after a timeout are counted.
+     */
+    WriteWatchdog(ProtocolMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the timeout of a server socket, so that its accepting thread wakes up to perform the checks.
+     *
+     * @param serverSocket The server socket, before its first accept.
+     * @throws SocketException If the timeout cannot be set.
+     */
+    void configure(ServerSocket serverSocket) throws SocketException {
+        serverSocket.setSoTimeout(CHECK_INTERVAL);
+    }
+
+    /**
+     * Closes the connections whose write deadline passed, if the last check was at least {@link #CHECK_INTERVAL}
+     * milliseconds ago. Called by the accepting thread before each accept.
+     */
+    void check() {
+        long now = System.nanoTime();
+        if (now - lastCheck < CHECK_INTERVAL * 1_000_000L)
+            return;
+        lastCheck = now;
+        for (Iterator<Map.Entry<Socket, ClientDeadline>> entries = writing.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<Socket, ClientDeadline> entry = entries.next();
+            if (!entry.getValue().writeExpired())
+                continue;
+            entries.remove();
+            Socket socket = entry.getKey();
+            System.out.println("Closing the connection from " + socket.getRemoteSocketAddress() +
+                    " after a write timeout");
+            entry.getValue().recordWriteTimeout(metrics);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Wraps the output stream of a blocking connection, so that each write is bounded by the connection's deadline.
+     *
+     * @param out      The stream writing to the socket, possibly through TLS.
+     * @param socket   The socket that is closed if a write does not complete in time. With TLS, this is the
+     *                 underlying socket, whose closing also fails writes to the TLS socket.
+     * @param deadline The deadline of the connection.
+     * @return The wrapped stream.
+     */
+    OutputStream guard(OutputStream out, Socket socket, ClientDeadline deadline) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                writeStarted(socket, deadline);
+                try {
+                    out.write(b);
+                } finally {
+                    writeFinished(socket, deadline);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeStarted(socket, deadline);
+                try {
+                    out.write(b, off, len);
+                } finally {
+                    writeFinished(socket, deadline);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writeStarted(socket, deadline);
+                try {
+                    out.flush();
+                } finally {
+                    writeFinished(socket, deadline);
+                }
+            }
+        };
+    }
+
+    /**
+     * Registers a connection whose handler thread is about to write to the socket, starting its write deadline.
+     *
+     * @param socket   The socket closed if the write does not complete in time.
+     * @param deadline The deadline of the connection.
+     */
+    void writeStarted(Socket socket, ClientDeadline deadline) {
+        deadline.writeStarted();
+        writing.put(socket, deadline);
+    }
+
+    /**
+     * Unregisters a connection once its handler thread completed a write.
+     *
+     * @param socket   The socket of the connection.
+     * @param deadline The deadline of the connection.
+     */
+    void writeFinished(Socket socket, ClientDeadline deadline) {
+        writing.remove(socket);
+        deadline.writeFinished();
+    }
+}